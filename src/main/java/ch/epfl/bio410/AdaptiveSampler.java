@@ -0,0 +1,121 @@
+package ch.epfl.bio410;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class decides when enough FoVs of a well have been analyzed, for the adaptive sampling mode.
+ * The FoVs are analyzed in a random order, and the fractions of enriched, depleted and intermediate cells
+ * among the counted cells are followed with a Wilson score interval.
+ * The well is converged once every interval is narrower than the tolerance, after a minimum number of FoVs.
+ * The interval treats the cells as independent, so the minimum number of FoVs guards against a single unusual FoV.
+ */
+public class AdaptiveSampler {
+
+    // Names of the class fractions, in the order of the counts
+    static final String[] CLASS_NAMES = {"enriched", "depleted", "intermediate"};
+
+    // User parameters with the tolerance, the z-score and the minimum number of FoVs
+    final Parameters params;
+
+    // Cells of each class, summed over the analyzed FoVs
+    final long[] counts = new long[CLASS_NAMES.length];
+
+    // FoVs whose cells were counted (comment Normal or No mitosis)
+    int fovs = 0;
+
+    // true once the intervals are narrow enough, the next FoVs of the well are not analyzed
+    boolean converged = false;
+
+    /**
+     * Constructor for AdaptiveSampler.
+     *
+     * @param params User parameters with the adaptive sampling settings
+     */
+    public AdaptiveSampler(Parameters params) {
+        this.params = params;
+    }
+
+    /**
+     * Gives the order in which the FoVs of a well are analyzed: shuffled in adaptive mode, so that the first FoVs
+     * are a random sample of the well, and the same for a given seed and well.
+     *
+     * @param well   The well
+     * @param params User parameters with the adaptive mode and the seed
+     * @return The entries of the well, in the order of the analysis
+     */
+    static List<WellEntry> order(Well well, Parameters params) {
+        List<WellEntry> entries = new ArrayList<>(well.wellEntries.values());
+        if (params.adaptive_sampling) {
+            entries.sort((a, b) -> Integer.compare(a.fov, b.fov)); // the map order is not stable across runs
+            Collections.shuffle(entries, new Random(params.adaptive_seed ^ well.name.hashCode()));
+        }
+        return entries;
+    }
+
+    /**
+     * Adds the cells of a finished WellEntry and checks if the well has converged.
+     *
+     * @param entry The finished WellEntry
+     * @return true if the well converged with this entry
+     */
+    public synchronized boolean add(WellEntry entry) {
+        if (entry.comment != WellEntry.EntryComments.NORMAL && entry.comment != WellEntry.EntryComments.NO_MITOSIS) {
+            return false;
+        }
+        fovs++;
+        counts[0] += entry.totalEnriched;
+        counts[1] += entry.totalDepleted;
+        counts[2] += entry.totalInter;
+
+        long n = counts[0] + counts[1] + counts[2];
+        if (converged || fovs < params.adaptive_min_fovs || n == 0) return false;
+        for (long count : counts) {
+            double[] interval = wilson(count, n, params.adaptive_z);
+            if (interval[1] - interval[0] > params.adaptive_tolerance) return false;
+        }
+        converged = true;
+        return true;
+    }
+
+    /**
+     * Tells if the intervals of the well are narrow enough.
+     */
+    public synchronized boolean isConverged() {
+        return converged;
+    }
+
+    /**
+     * Computes the Wilson score interval of a proportion.
+     *
+     * @param successes Number of cells of the class
+     * @param n         Number of cells
+     * @param z         z-score of the confidence level, e.g. 1.96 for 95%
+     * @return {lower, upper} bounds of the proportion
+     */
+    static double[] wilson(long successes, long n, double z) {
+        if (n == 0) return new double[]{0, 1};
+        double p = (double) successes / n;
+        double z2 = z * z;
+        double denominator = 1 + z2 / n;
+        double center = (p + z2 / (2.0 * n)) / denominator;
+        double half = z / denominator * Math.sqrt(p * (1 - p) / n + z2 / (4.0 * n * n));
+        return new double[]{Math.max(0, center - half), Math.min(1, center + half)};
+    }
+
+    /**
+     * Formats the fractions and their intervals, for the logs.
+     */
+    public synchronized String describe() {
+        long n = counts[0] + counts[1] + counts[2];
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < counts.length; k++) {
+            double[] interval = wilson(counts[k], n, params.adaptive_z);
+            if (k > 0) sb.append(", ");
+            sb.append(String.format("%s %.3f [%.3f, %.3f]", CLASS_NAMES[k], n == 0 ? Double.NaN : (double) counts[k] / n, interval[0], interval[1]));
+        }
+        return sb.append(" over ").append(n).append(" cells").toString();
+    }
+}
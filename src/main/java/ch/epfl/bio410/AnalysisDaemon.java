@@ -0,0 +1,362 @@
+package ch.epfl.bio410;
+
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.process.FloatProcessor;
+import net.imagej.ImageJ;
+import org.scijava.command.Command;
+import org.scijava.plugin.Plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is the daemon mode of the analysis: it stays resident with ImageJ and the Stardist networks warmed up,
+ * and runs plate jobs from a priority queue, one at a time, on the same threads of the staged pipeline. A job is a properties file with the fields of Parameters
+ * (at least dataDir and resultsDir, pythonEnvDir for the random forest) and an optional "priority" (higher first).
+ * Jobs are submitted by dropping a .job file in the spool directory, or by sending the properties
+ * to the local socket followed by a line "END". A file named STOP in the spool, or the line "STOP", stops the daemon.
+ * Each job prepares the bundled networks of its own model_dir when it starts.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>TF Analyze Daemon")
+public class AnalysisDaemon implements Command {
+
+    // Extension of the job files of the spool directory, renamed .running, .done or .failed
+    static final String JOB_EXTENSION = ".job";
+
+    // Interval between two scans of the spool directory, in milliseconds
+    static final long SPOOL_INTERVAL_MS = 2000;
+
+    // Spool directory, empty disables it
+    String spoolDir = "";
+
+    // Port of the socket on the loopback interface, 0 disables it
+    int port = 0;
+
+    // Number of jobs analyzed at the same time
+    // The analysis uses the global ROI Manager of ImageJ, so only one worker is accepted
+    int workers = 1;
+
+    // Size of the synthetic image segmented at warm-up, in pixels
+    static final int WARM_UP_SIZE = 256;
+
+    // Jobs waiting, by decreasing priority then in the order of submission
+    final PriorityBlockingQueue<PlateJob> queue = new PriorityBlockingQueue<>();
+
+    // Order of submission of the jobs
+    final AtomicLong submitted = new AtomicLong();
+
+    // ImageJ2 context shared by all the jobs, so that Stardist and TensorFlow are only loaded once
+    ImageJ imageJ = null;
+
+    // Threads running the jobs, shared by all the jobs
+    ExecutorService pool = null;
+
+    // Threads of the stages of the staged pipeline, shared by all the jobs
+    ExecutorService stageThreads = null;
+
+    // false once the daemon is asked to stop
+    volatile boolean running = true;
+
+    /**
+     * This class is one plate to analyze.
+     */
+    static class PlateJob implements Comparable<PlateJob> {
+        final String name;
+        final Parameters params;
+        final int priority;
+        final long order;
+        // job file of the spool, null if the job came from the socket
+        final File file;
+
+        PlateJob(String name, Parameters params, int priority, long order, File file) {
+            this.name = name;
+            this.params = params;
+            this.priority = priority;
+            this.order = order;
+            this.file = file;
+        }
+
+        @Override
+        public int compareTo(PlateJob other) {
+            if (priority != other.priority) return Integer.compare(other.priority, priority);
+            return Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Asks the daemon settings and starts the daemon.
+     */
+    public void run() {
+        GenericDialog gd = new GenericDialog("Analysis daemon");
+        gd.addDirectoryField("Spool directory (empty disables it):", spoolDir);
+        gd.addNumericField("Local socket port (0 disables it)", port, 0);
+        gd.showDialog();
+        if (gd.wasCanceled()) return;
+        spoolDir = gd.getNextString();
+        port = (int) gd.getNextNumber();
+
+        Thread daemon = new Thread(this::serve, "Analysis daemon");
+        daemon.start();
+    }
+
+    /**
+     * Starts the daemon from the command line: spool=<dir> port=<port> workers=1.
+     */
+    public static void main(String[] args) {
+        AnalysisDaemon d = new AnalysisDaemon();
+        for (String arg : args) {
+            if (arg.startsWith("spool=")) d.spoolDir = arg.substring(6);
+            else if (arg.startsWith("port=")) d.port = Integer.parseInt(arg.substring(5));
+            else if (arg.startsWith("workers=")) d.workers = Integer.parseInt(arg.substring(8));
+        }
+        d.serve();
+        System.exit(0); // the ImageJ context keeps non-daemon threads alive
+    }
+
+    /**
+     * Warms up the models, starts the job sources and runs the jobs until the daemon is stopped.
+     */
+    void serve() {
+        if (spoolDir.isEmpty() && port <= 0) {
+            System.err.println("The daemon needs a spool directory or a socket port.");
+            return;
+        }
+        if (workers != 1) {
+            System.err.println("The daemon runs one job at a time, the analysis uses the global ROI Manager of ImageJ (workers=" + workers + ").");
+            return;
+        }
+
+        // warm up: ImageJ context, bundled networks and TensorFlow, shared by every job
+        imageJ = new ImageJ();
+        stageThreads = StagedPipeline.newExecutor();
+        warmUp();
+
+        if (!spoolDir.isEmpty())
+            requeueRunning();
+
+        pool = Executors.newSingleThreadExecutor(r -> new Thread(r, "Analysis daemon worker"));
+        pool.submit(this::work);
+
+        Thread socket = null;
+        if (port > 0) {
+            socket = new Thread(this::listen, "Analysis daemon socket");
+            socket.setDaemon(true);
+            socket.start();
+        }
+        System.out.println("Analysis daemon ready" + (spoolDir.isEmpty() ? "" : ", spool " + spoolDir) + (port > 0 ? ", port " + port : ""));
+
+        while (running) {
+            if (!spoolDir.isEmpty())
+                scanSpool();
+            try {
+                Thread.sleep(SPOOL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                running = false;
+            }
+        }
+
+        // the jobs already queued are finished before stopping
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Analysis daemon: waiting for " + queue.size() + " queued jobs.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stageThreads.shutdown();
+        System.out.println("Analysis daemon stopped.");
+    }
+
+    /**
+     * Runs Stardist once on a small synthetic image with the default parameters, so that TensorFlow and the network
+     * are loaded before the first job. A failure is only logged, the first job then loads them.
+     */
+    void warmUp() {
+        FloatProcessor ip = new FloatProcessor(WARM_UP_SIZE, WARM_UP_SIZE);
+        Random random = new Random(0);
+        for (int y = 0; y < WARM_UP_SIZE; y++) {
+            for (int x = 0; x < WARM_UP_SIZE; x++) {
+                // a few bright discs of the size of a nucleus on a noisy background
+                double d = Math.hypot(x % 64 - 32, y % 64 - 32);
+                ip.setf(x, y, (float) ((d < 10 ? 3000 : 500) + 60 * random.nextGaussian()));
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            ProjectCommand command = new ProjectCommand();
+            command.imageJ = imageJ;
+            ModelRegistry.prepare(command.params);
+            Roi[] rois = command.segment(new ImagePlus("Warm-up", ip), false, "Warm-up");
+            System.out.println(String.format("Analysis daemon: Stardist warmed up in %.1f s (%d nuclei on the synthetic image)",
+                    (System.nanoTime() - start) / 1e9, rois.length));
+        } catch (Throwable e) {
+            System.err.println("Analysis daemon: Stardist warm-up failed: " + e);
+        }
+    }
+
+    /**
+     * Body of a worker: runs the queued jobs, by priority, until the daemon is stopped and the queue is empty.
+     */
+    void work() {
+        while (running || !queue.isEmpty()) {
+            PlateJob job;
+            try {
+                job = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == null) continue;
+
+            System.out.println("Analysis daemon: starting " + job.name + " (priority " + job.priority + ", " + queue.size() + " waiting)");
+            long start = System.nanoTime();
+            boolean ok;
+            try {
+                ProjectCommand command = new ProjectCommand();
+                command.params = job.params;
+                command.imageJ = imageJ;
+                command.pipelineExecutor = stageThreads;
+                ok = command.runAnalysis(); // prepares the networks of the model_dir of the job
+            } catch (Throwable e) { // e.g. an OutOfMemoryError on one plate, the worker goes on with the next jobs
+                ok = false;
+                System.err.println("Analysis daemon: " + job.name + " failed: " + e);
+            }
+            System.out.println(String.format("Analysis daemon: %s %s in %.1f s", job.name, ok ? "finished" : "failed", (System.nanoTime() - start) / 1e9));
+            if (job.file != null)
+                rename(job.file, ok ? ".done" : ".failed");
+        }
+    }
+
+    /**
+     * Queues the new job files of the spool directory, and stops the daemon if there is a STOP file.
+     */
+    void scanSpool() {
+        File spool = new File(spoolDir);
+        File stop = new File(spool, "STOP");
+        if (stop.exists()) {
+            running = false;
+            if (!stop.delete())
+                System.err.println("Unable to delete " + stop);
+            return;
+        }
+        File[] files = spool.listFiles((d, name) -> name.endsWith(JOB_EXTENSION));
+        if (files == null) return;
+        for (File file : files) {
+            File claimed = rename(file, ".running"); // a job file is only queued once
+            if (claimed == null) continue;
+            try (Reader reader = new BufferedReader(new FileReader(claimed))) {
+                submit(file.getName(), reader, claimed);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Analysis daemon: invalid job " + file + ": " + e.getMessage());
+                rename(claimed, ".failed");
+            }
+        }
+    }
+
+    /**
+     * Puts back the jobs of the spool that were running when a previous daemon stopped (e.g. a crash),
+     * so that the next scan queues them again.
+     */
+    void requeueRunning() {
+        File[] files = new File(spoolDir).listFiles((d, name) -> name.endsWith(".running"));
+        if (files == null) return;
+        for (File file : files) {
+            if (rename(file, JOB_EXTENSION) != null)
+                System.out.println("Analysis daemon: " + file.getName() + " was not finished, queued again");
+            else
+                System.err.println("Analysis daemon: unable to queue " + file + " again");
+        }
+    }
+
+    /**
+     * Accepts the jobs sent to the local socket, one job per connection.
+     */
+    void listen() {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            while (running) {
+                try (Socket client = server.accept();
+                     BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                     PrintWriter out = new PrintWriter(client.getOutputStream(), true)) {
+                    StringBuilder text = new StringBuilder();
+                    String line;
+                    while ((line = in.readLine()) != null && !line.trim().equals("END")) {
+                        if (line.trim().equals("STOP")) {
+                            running = false;
+                            break;
+                        }
+                        text.append(line).append('\n');
+                    }
+                    if (!running) {
+                        out.println("STOPPING");
+                        continue;
+                    }
+                    try {
+                        PlateJob job = submit("socket job", new StringReader(text.toString()), null);
+                        out.println("QUEUED " + job.name + " " + queue.size());
+                    } catch (IllegalArgumentException e) {
+                        out.println("ERROR " + e.getMessage());
+                    }
+                } catch (IOException e) {
+                    System.err.println("Analysis daemon: socket error: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Analysis daemon: unable to listen on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the parameters of a job and queues it.
+     *
+     * @param name   Name of the job, used in the logs
+     * @param reader The properties of the job
+     * @param file   The job file of the spool, or null
+     * @return The queued job
+     * @throws IOException              if the properties cannot be read
+     * @throws IllegalArgumentException if a parameter is invalid or a directory is missing
+     */
+    PlateJob submit(String name, Reader reader, File file) throws IOException {
+        Properties properties = new Properties();
+        properties.load(reader);
+        Parameters params = new Parameters();
+        params.load(properties);
+        if (params.dataDir.isEmpty() || params.resultsDir.isEmpty())
+            throw new IllegalArgumentException("dataDir and resultsDir are required");
+        int priority = Integer.parseInt(properties.getProperty("priority", "0").trim());
+        long order = submitted.incrementAndGet();
+        PlateJob job = new PlateJob(name + " #" + order, params, priority, order, file);
+        queue.add(job);
+        System.out.println("Analysis daemon: queued " + job.name + " for " + params.dataDir);
+        return job;
+    }
+
+    /**
+     * Replaces the extension of a job file.
+     *
+     * @return The renamed file, or null if it could not be renamed
+     */
+    static File rename(File file, String extension) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        File target = new File(file.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + extension);
+        return file.renameTo(target) ? target : null;
+    }
+}
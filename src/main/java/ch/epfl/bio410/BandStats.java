@@ -0,0 +1,109 @@
+package ch.epfl.bio410;
+
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * This class measures the intensity of an image inside a ROI and in an external band around it.
+ * It reads the pixels directly from the ROI mask, so it does not need the ROI Manager,
+ * "Make Band..." or the global ResultsTable.
+ */
+public class BandStats {
+
+    /**
+     * Measures the mean and standard deviation of the pixels inside a ROI.
+     *
+     * @param ip  Image to measure
+     * @param roi The ROI
+     * @return {mean, standard deviation}
+     */
+    public static double[] inside(ImageProcessor ip, Roi roi) {
+        IntensityKernels.Moments m = IntensityKernels.measure(ip, roi.getMask(), roi.getBounds());
+        return meanAndStd(m.n, m.sum, m.sumSquares);
+    }
+
+    /**
+     * Converts a band size in calibrated units to pixels, as "Make Band..." does (rounded, at least one pixel).
+     *
+     * @param size Size of the band in the units of the image
+     * @param cal  Calibration of the image
+     * @return Size of the band in pixels
+     */
+    public static double bandPixels(double size, Calibration cal) {
+        double pixelWidth = cal == null || cal.pixelWidth <= 0 ? 1 : cal.pixelWidth;
+        return Math.max(1, Math.round(size / pixelWidth));
+    }
+
+    /**
+     * Measures the mean and standard deviation of the pixels outside a ROI
+     * whose distance to the ROI, rounded as in the 8-bit distance map of "Make Band...", is at most the band size,
+     * like "Make Band..." followed by "Measure".
+     *
+     * @param ip   Image to measure
+     * @param roi  The ROI
+     * @param size Size of the band in pixels
+     * @return {mean, standard deviation}
+     */
+    public static double[] band(ImageProcessor ip, Roi roi, double size) {
+        Rectangle r = roi.getBounds();
+        ImageProcessor mask = roi.getMask();
+        // "Make Band..." rounds the distances to integers, so it keeps the pixels closer than size + 0.5
+        double reach = size + 0.5;
+        int d = (int) Math.floor(reach);
+        Rectangle bandBounds = new Rectangle(r.x - d, r.y - d, r.width + 2 * d, r.height + 2 * d);
+
+        // mask of the band over the enlarged bounds, the sums are done by the kernels
+        ByteProcessor bandMask = new ByteProcessor(bandBounds.width, bandBounds.height);
+        byte[] pixels = (byte[]) bandMask.getPixels();
+        for (int y = 0; y < bandBounds.height; y++) {
+            for (int x = 0; x < bandBounds.width; x++) {
+                int ix = x + bandBounds.x, iy = y + bandBounds.y;
+                if (isInside(mask, r, ix, iy) || !isNear(mask, r, ix, iy, d, reach)) continue;
+                pixels[y * bandBounds.width + x] = (byte) 255;
+            }
+        }
+        IntensityKernels.Moments m = IntensityKernels.measure(ip, bandMask, bandBounds);
+        return meanAndStd(m.n, m.sum, m.sumSquares);
+    }
+
+    /**
+     * Checks if a pixel belongs to the ROI.
+     */
+    static boolean isInside(ImageProcessor mask, Rectangle r, int x, int y) {
+        int mx = x - r.x, my = y - r.y;
+        if (mx < 0 || my < 0 || mx >= r.width || my >= r.height) return false;
+        return mask == null || mask.get(mx, my) != 0;
+    }
+
+    /**
+     * Checks if a pixel is closer than the given Euclidean distance to a pixel of the ROI.
+     */
+    static boolean isNear(ImageProcessor mask, Rectangle r, int x, int y, int d, double reach) {
+        double reach2 = reach * reach;
+        for (int dy = -d; dy <= d; dy++) {
+            for (int dx = -d; dx <= d; dx++) {
+                if (dx * dx + dy * dy >= reach2) continue;
+                if (isInside(mask, r, x + dx, y + dy)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the mean and the sample standard deviation (as ImageJ does) from the sums.
+     */
+    static double[] meanAndStd(long n, double sum, double sum2) {
+        if (n == 0) return new double[]{Double.NaN, Double.NaN};
+        double mean = sum / n;
+        double std = 0;
+        if (n > 1) {
+            double var = (sum2 - sum * sum / n) / (n - 1.0);
+            std = var > 0 ? Math.sqrt(var) : 0;
+        }
+        return new double[]{mean, std};
+    }
+}
@@ -0,0 +1,246 @@
+package ch.epfl.bio410;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a per-worker pool of pixel buffers and primitive feature columns.
+ * Arrays borrowed during the analysis of a WellEntry are given back with recycle() when the entry is finished,
+ * and reused for the next entries of the same size instead of being garbage collected.
+ * It also measures the bytes allocated by each worker, for the allocation-rate report.
+ * The counts of an entry are added to the totals of the report when it ends, so no pool is referenced after its thread is done.
+ */
+public class BufferPool {
+
+    // Maximum number of free arrays kept per type and size
+    static final int MAX_FREE = 4;
+
+    // One pool per worker thread
+    private static final ThreadLocal<BufferPool> pools = ThreadLocal.withInitial(BufferPool::new);
+
+    // Totals of the finished entries of all the pools, for the report
+    private static final AtomicLong totalBytes = new AtomicLong(), totalEntries = new AtomicLong(),
+            totalMeasured = new AtomicLong(), totalHits = new AtomicLong(), totalMisses = new AtomicLong();
+
+    // Free arrays, by class and length
+    private final Map<Class<?>, Map<Integer, ArrayDeque<Object>>> free = new HashMap<>();
+
+    // Arrays lent during the current entry
+    private final List<Object> borrowed = new ArrayList<>();
+
+    // Number of arrays reused and allocated during the current entry
+    long hits = 0, misses = 0;
+
+    // Allocated bytes of the thread when the current entry started, -1 if not measured
+    private long entryStart = -1;
+
+    // Bytes allocated for the current entry by the stage threads, and if any of them was measured
+    private long entryBytes = 0;
+    private boolean entryMeasured = false;
+
+    private BufferPool() {
+    }
+
+    /**
+     * Gets the pool of the current worker thread.
+     *
+     * @return The pool of this thread
+     */
+    public static BufferPool get() {
+        return pools.get();
+    }
+
+    /**
+     * Creates a pool that is not bound to a thread, for an entry handed over between the threads of the staged pipeline.
+     * Its allocations are added by each stage thread with measure(), only one thread may use it at a time.
+     * The pool is not registered anywhere, it is dropped with its last reference (the pipeline that lends it).
+     *
+     * @return A new pool
+     */
+    public static BufferPool create() {
+        return new BufferPool();
+    }
+
+    /**
+     * Borrows a short array of exactly the given length, e.g. the pixels of a 16-bit image.
+     */
+    public short[] shorts(int length) {
+        Object a = take(short[].class, length);
+        return a != null ? (short[]) a : lend(new short[length]);
+    }
+
+    /**
+     * Borrows a float array of exactly the given length, e.g. the pixels of a 32-bit image.
+     */
+    public float[] floats(int length) {
+        Object a = take(float[].class, length);
+        return a != null ? (float[]) a : lend(new float[length]);
+    }
+
+    /**
+     * Borrows a double array of at least the given length (rounded up to a power of two), e.g. a feature column.
+     */
+    public double[] doubles(int minLength) {
+        int length = capacity(minLength);
+        Object a = take(double[].class, length);
+        return a != null ? (double[]) a : lend(new double[length]);
+    }
+
+    /**
+     * Borrows an int array of at least the given length (rounded up to a power of two), e.g. the predictions.
+     */
+    public int[] ints(int minLength) {
+        int length = capacity(minLength);
+        Object a = take(int[].class, length);
+        return a != null ? (int[]) a : lend(new int[length]);
+    }
+
+    /**
+     * Copies an image processor into a pooled buffer, in place of ImageProcessor.duplicate().
+     *
+     * @param ip The image to copy
+     * @return A copy of the image
+     */
+    public ImageProcessor duplicate(ImageProcessor ip) {
+        int size = ip.getWidth() * ip.getHeight();
+        if (ip instanceof ShortProcessor) {
+            short[] pixels = shorts(size);
+            System.arraycopy((short[]) ip.getPixels(), 0, pixels, 0, size);
+            return new ShortProcessor(ip.getWidth(), ip.getHeight(), pixels, ip.getColorModel());
+        }
+        if (ip instanceof FloatProcessor) {
+            float[] pixels = floats(size);
+            System.arraycopy((float[]) ip.getPixels(), 0, pixels, 0, size);
+            return new FloatProcessor(ip.getWidth(), ip.getHeight(), pixels, ip.getColorModel());
+        }
+        return ip.duplicate();
+    }
+
+    /**
+     * Gives back all the arrays borrowed during the current entry.
+     * They must not be used by the caller anymore.
+     */
+    public void recycle() {
+        for (Object a : borrowed) {
+            int length = Array.getLength(a);
+            ArrayDeque<Object> queue = free.computeIfAbsent(a.getClass(), k -> new HashMap<>())
+                    .computeIfAbsent(length, k -> new ArrayDeque<>());
+            if (queue.size() < MAX_FREE) queue.push(a);
+        }
+        borrowed.clear();
+    }
+
+    /**
+     * Starts measuring the bytes allocated by this thread for one entry.
+     */
+    public void beginEntry() {
+        entryStart = threadAllocatedBytes();
+    }
+
+    /**
+     * Adds the bytes allocated by the current thread since the given count to the current entry,
+     * for a stage of the pipeline working on the entry of this pool.
+     *
+     * @param start Allocated bytes of the thread when the stage started, from threadAllocatedBytes()
+     */
+    public void measure(long start) {
+        long end = threadAllocatedBytes();
+        if (start >= 0 && end >= 0) {
+            entryBytes += end - start;
+            entryMeasured = true;
+        }
+    }
+
+    /**
+     * Stops measuring the bytes allocated for the current entry, adds its counts to the report and recycles its arrays.
+     */
+    public void endEntry() {
+        measure(entryStart);
+        if (entryMeasured) {
+            totalBytes.addAndGet(entryBytes);
+            totalMeasured.incrementAndGet();
+        }
+        totalEntries.incrementAndGet();
+        totalHits.addAndGet(hits);
+        totalMisses.addAndGet(misses);
+        hits = 0;
+        misses = 0;
+        entryStart = -1;
+        entryBytes = 0;
+        entryMeasured = false;
+        recycle();
+    }
+
+    /**
+     * Builds the allocation-rate report of all the workers.
+     * Only the entries whose allocations were measured count in the MB/FoV, the report says so when some were not
+     * (e.g. the JVM does not measure the allocations of a thread).
+     *
+     * @return A human readable report
+     */
+    public static String report() {
+        long n = totalEntries.get(), measured = totalMeasured.get();
+        double mb = totalBytes.get() / (1024.0 * 1024.0);
+        String buffers = String.format("%d buffers reused, %d allocated", totalHits.get(), totalMisses.get());
+        if (measured == 0)
+            return String.format("Allocation report: allocations not measured over %d FoVs, %s", n, buffers);
+        return String.format("Allocation report: %.1f MB allocated over %d FoVs (%.1f MB/FoV)%s, %s",
+                mb, measured, mb / measured, measured < n ? String.format(", partial: %d FoVs not measured", n - measured) : "", buffers);
+    }
+
+    /**
+     * Takes a free array of the given class and length, or null if there is none.
+     */
+    private Object take(Class<?> type, int length) {
+        Map<Integer, ArrayDeque<Object>> bySize = free.get(type);
+        ArrayDeque<Object> queue = bySize == null ? null : bySize.get(length);
+        if (queue == null || queue.isEmpty()) {
+            misses++;
+            return null;
+        }
+        hits++;
+        Object a = queue.pop();
+        borrowed.add(a);
+        return a;
+    }
+
+    /**
+     * Records a new array as borrowed.
+     */
+    private <T> T lend(T array) {
+        borrowed.add(array);
+        return array;
+    }
+
+    /**
+     * Rounds a length up to a power of two, so that columns of similar sizes share their buffers.
+     */
+    static int capacity(int minLength) {
+        return minLength <= 16 ? 16 : Integer.highestOneBit(minLength - 1) << 1;
+    }
+
+    /**
+     * Gets the bytes allocated by the current thread, or -1 if the JVM does not support it.
+     */
+    static long threadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,137 @@
+package ch.epfl.bio410;
+
+/**
+ * This class is a two-stage cascade in front of another classifier (the random forest).
+ * Cheap threshold rules, derived from the labelled features by train_cascade.py, reject the cells that are
+ * clearly not in metaphase (not elongated, or with a flat nucleus), and only the remaining cells
+ * go to the second classifier. A FoV without any remaining cell does not start the Python process at all.
+ * In audit mode, the second classifier also sees the rejected cells and its predictions are kept,
+ * so that the recall of the cascade against it can be reported.
+ */
+public class CascadeClassifier implements MetaphaseClassifier {
+
+    // Classifier of the cells that pass the rules
+    final MetaphaseClassifier next;
+
+    // User parameters with the thresholds of the rules
+    final Parameters params;
+
+    // Cells seen and cells rejected by the rules
+    long cells = 0, rejected = 0;
+
+    // FoVs seen and FoVs whose cells were all rejected
+    long fovs = 0, skipped = 0;
+
+    // Audit mode: cells in metaphase for the second classifier, and the ones the rules rejected
+    long positives = 0, missed = 0;
+
+    /**
+     * Constructor for CascadeClassifier.
+     *
+     * @param next   The classifier of the cells that pass the rules
+     * @param params User parameters with the cascade thresholds and the audit mode
+     */
+    public CascadeClassifier(MetaphaseClassifier next, Parameters params) {
+        this.next = next;
+        this.params = params;
+    }
+
+    /**
+     * Checks if a cell passes the rules of the cascade, i.e. if it may be in metaphase.
+     *
+     * @param features The features of the cells
+     * @param j        Index of the cell
+     * @return false if the cell is surely not in metaphase
+     */
+    boolean passes(FovFeatures features, int j) {
+        // the circular cells are already removed by the prefilter, and roundness is 1/AR
+        return features.AR[j] >= params.cascade_min_aspect_ratio
+                && features.nucl_std_in[j] >= params.cascade_min_nucl_std_in;
+    }
+
+    @Override
+    public int classify(FovFeatures features, String name) throws Watchdog.StageFailedException {
+        int n = features.n;
+        boolean[] candidate = new boolean[n];
+        int nCandidates = 0;
+        for (int j = 0; j < n; j++) {
+            candidate[j] = passes(features, j);
+            if (candidate[j]) nCandidates++;
+        }
+
+        if (params.cascade_audit) {
+            int nPredictions = next.classify(features, name);
+            if (nPredictions == n) {
+                int nPositives = 0, nMissed = 0;
+                for (int j = 0; j < n; j++) {
+                    if (features.metaphase[j] == 0) continue;
+                    nPositives++;
+                    if (!candidate[j]) nMissed++;
+                }
+                record(n, n - nCandidates, nCandidates == 0, nPositives, nMissed);
+            }
+            return nPredictions;
+        }
+
+        record(n, n - nCandidates, nCandidates == 0, 0, 0);
+        for (int j = 0; j < n; j++) {
+            features.metaphase[j] = 0;
+        }
+        if (nCandidates == 0) {
+            return n; // every cell was rejected by the rules
+        }
+        if (nCandidates == n) {
+            return next.classify(features, name);
+        }
+
+        // the second classifier only sees the remaining cells, its predictions are put back in place
+        FovFeatures remaining = new FovFeatures(features.yfp_std, features.total_nuclei, nCandidates, features.pool);
+        remaining.majors = remaining.select(features.majors, candidate);
+        remaining.minors = remaining.select(features.minors, candidate);
+        remaining.area = remaining.select(features.area, candidate);
+        remaining.perimeter = remaining.select(features.perimeter, candidate);
+        remaining.circularity = remaining.select(features.circularity, candidate);
+        remaining.AR = remaining.select(features.AR, candidate);
+        remaining.roundness = remaining.select(features.roundness, candidate);
+        remaining.solidity = remaining.select(features.solidity, candidate);
+        remaining.nucl_std_in = remaining.select(features.nucl_std_in, candidate);
+        remaining.nucl_std_out = remaining.select(features.nucl_std_out, candidate);
+        remaining.nucl_mean_in = remaining.select(features.nucl_mean_in, candidate);
+        remaining.nucl_mean_out = remaining.select(features.nucl_mean_out, candidate);
+
+        int nPredictions = next.classify(remaining, name);
+        for (int j = 0, k = 0; j < n && k < Math.min(nPredictions, nCandidates); j++) {
+            if (candidate[j]) features.metaphase[j] = remaining.metaphase[k++];
+        }
+        // the rejected cells are predicted by the rules, so the count matches n only if the second classifier answered for every remaining cell
+        return n - nCandidates + nPredictions;
+    }
+
+    /**
+     * Adds the counts of one FoV, the classify stage may run on several threads.
+     */
+    synchronized void record(int nCells, int nRejected, boolean allRejected, int nPositives, int nMissed) {
+        fovs++;
+        cells += nCells;
+        rejected += nRejected;
+        if (allRejected) skipped++;
+        positives += nPositives;
+        missed += nMissed;
+    }
+
+    /**
+     * Builds the report of the cascade: cells rejected, FoVs that did not need the second classifier,
+     * and in audit mode the recall of the rules against the second classifier.
+     *
+     * @return A human readable report
+     */
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder(String.format("Cascade: %d of %d cells rejected by the rules (%.1f%%), %d of %d FoVs without any cell for the random forest",
+                rejected, cells, cells == 0 ? 0 : 100.0 * rejected / cells, skipped, fovs));
+        if (params.cascade_audit) {
+            sb.append(String.format(", recall against the random forest %.4f (%d of %d cells in metaphase kept)",
+                    positives == 0 ? Double.NaN : (double) (positives - missed) / positives, positives - missed, positives));
+        }
+        return sb.toString();
+    }
+}
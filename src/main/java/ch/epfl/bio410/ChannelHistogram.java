@@ -0,0 +1,198 @@
+package ch.epfl.bio410;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+
+/**
+ * This class is the full 16-bit histogram of one channel, with its moments, built in a single pass over the pixels.
+ * The noise filter (standard deviation), the contrast enhancement (saturated limits) and the Stardist
+ * normalization (percentiles) all read from it instead of scanning the image again.
+ */
+public class ChannelHistogram {
+
+    // Number of bins, one per 16-bit value
+    static final int BINS = 65536;
+
+    // Count of pixels for each value
+    final int[] counts;
+
+    // Number of pixels
+    final long n;
+
+    // Smallest and largest values
+    final int min, max;
+
+    // Sum and sum of squares of the values
+    final double sum, sumSquares;
+
+    private ChannelHistogram(int[] counts, long n, int min, int max, double sum, double sumSquares) {
+        this.counts = counts;
+        this.n = n;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.sumSquares = sumSquares;
+    }
+
+    /**
+     * Builds the histogram of a 8-bit or 16-bit image in one pass.
+     *
+     * @param ip   The image
+     * @param pool Pool lending the bins, or null to allocate them
+     * @return The histogram, or null if the image is not 8-bit or 16-bit
+     */
+    public static ChannelHistogram of(ImageProcessor ip, BufferPool pool) {
+        int bitDepth = ip.getBitDepth();
+        if (bitDepth != 8 && bitDepth != 16) return null;
+
+        int[] counts = pool != null ? pool.ints(BINS) : new int[BINS];
+        Arrays.fill(counts, 0, BINS, 0); // pooled bins hold the counts of a previous image
+        int size = ip.getWidth() * ip.getHeight();
+        if (ip instanceof ShortProcessor) {
+            short[] pixels = (short[]) ip.getPixels();
+            for (int i = 0; i < size; i++) {
+                counts[pixels[i] & 0xffff]++;
+            }
+        } else {
+            byte[] pixels = (byte[]) ip.getPixels();
+            for (int i = 0; i < size; i++) {
+                counts[pixels[i] & 0xff]++;
+            }
+        }
+
+        // the moments are summed over the bins, not the pixels
+        int min = -1, max = -1;
+        double sum = 0, sumSquares = 0;
+        for (int v = 0; v < BINS; v++) {
+            int c = counts[v];
+            if (c == 0) continue;
+            if (min < 0) min = v;
+            max = v;
+            sum += (double) v * c;
+            sumSquares += (double) v * v * c;
+        }
+        return new ChannelHistogram(counts, size, Math.max(min, 0), Math.max(max, 0), sum, sumSquares);
+    }
+
+    /**
+     * Gives the mean of the pixel values.
+     */
+    public double mean() {
+        return n == 0 ? Double.NaN : sum / n;
+    }
+
+    /**
+     * Gives the sample standard deviation of the pixel values, as in the StdDev column of Measure.
+     */
+    public double stdDev() {
+        if (n < 2) return 0;
+        double variance = (sumSquares - sum * sum / n) / (n - 1);
+        return Math.sqrt(Math.max(variance, 0));
+    }
+
+    /**
+     * Gives the smallest value with at least the given percentage of the pixels below or at it.
+     *
+     * @param percent Percentile, between 0 and 100
+     * @return The value of the percentile
+     */
+    public int percentile(double percent) {
+        if (percent <= 0) return min;
+        if (percent >= 100) return max;
+        double rank = n * percent / 100.0;
+        long count = 0;
+        for (int v = min; v <= max; v++) {
+            count += counts[v];
+            if (count >= rank) return v;
+        }
+        return max;
+    }
+
+    /**
+     * Gives the display range of Enhance Contrast: the given percentage of the pixels is saturated,
+     * half at each end of the histogram.
+     *
+     * @param saturated Percentage of saturated pixels, e.g. 0.35
+     * @return The lower and upper limits, {min, max} if the histogram cannot be stretched
+     */
+    public int[] saturatedLimits(double saturated) {
+        long threshold = saturated > 0 ? (long) (n * saturated / 200.0) : 0;
+        int low = min;
+        long count = 0;
+        for (int v = min; v <= max; v++) {
+            count += counts[v];
+            low = v;
+            if (count > threshold) break;
+        }
+        int high = max;
+        count = 0;
+        for (int v = max; v >= min; v--) {
+            count += counts[v];
+            high = v;
+            if (count > threshold) break;
+        }
+        return high > low ? new int[]{low, high} : new int[]{min, max};
+    }
+
+    /**
+     * Builds the table of Apply LUT for a display range: the values are stretched linearly to the full range.
+     *
+     * @param low   Lower limit of the display range
+     * @param high  Upper limit of the display range
+     * @param range Number of output values, 65536 for 16-bit images and 256 for 8-bit images
+     * @return The lookup table
+     */
+    static int[] stretchTable(int low, int high, int range) {
+        int[] table = new int[range];
+        for (int v = 0; v < range; v++) {
+            if (v <= low) table[v] = 0;
+            else if (v >= high) table[v] = range - 1;
+            else table[v] = (int) (((double) (v - low) / (high - low)) * range);
+        }
+        return table;
+    }
+
+    /**
+     * Enhances the contrast of an image and applies it to the pixels,
+     * as Enhance Contrast (saturated) followed by Apply LUT, using this histogram of the image.
+     *
+     * @param ip        The image, modified in place
+     * @param saturated Percentage of saturated pixels, e.g. 0.35
+     * @return The lookup table applied to the pixels
+     */
+    public int[] stretch(ImageProcessor ip, double saturated) {
+        int[] limits = saturatedLimits(saturated);
+        int[] table = stretchTable(limits[0], limits[1], ip.getBitDepth() == 16 ? BINS : 256);
+        ip.resetRoi();
+        ip.applyTable(table);
+        ip.resetMinAndMax();
+        return table;
+    }
+
+    /**
+     * Normalizes an image by percentiles to floats, as the normalizeInput option of Stardist:
+     * the bottom percentile goes to 0 and the top percentile to 1.
+     *
+     * @param ip     The image
+     * @param table  Lookup table applied to the image since this histogram was built, or null
+     * @param bottom Bottom percentile, e.g. 1
+     * @param top    Top percentile, e.g. 100
+     * @param pixels Output buffer with one float per pixel
+     */
+    public void normalize(ImageProcessor ip, int[] table, double bottom, double top, float[] pixels) {
+        // the table is monotonic, so the percentiles of the stretched image are the stretched percentiles
+        int low = percentile(bottom), high = percentile(top);
+        if (table != null) {
+            low = table[low];
+            high = table[high];
+        }
+        float offset = low;
+        float scale = 1f / Math.max(high - low, 1e-20f);
+        int size = ip.getWidth() * ip.getHeight();
+        for (int i = 0; i < size; i++) {
+            pixels[i] = (ip.get(i) - offset) * scale;
+        }
+    }
+}
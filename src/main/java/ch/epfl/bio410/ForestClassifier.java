@@ -0,0 +1,98 @@
+package ch.epfl.bio410;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * This class classifies the cells with the random forest of the Python environment (classify_metaphase_random_forest.py).
+ * The features are written in a csv file with one column per cell, and the script prints one prediction per line.
+ */
+public class ForestClassifier implements MetaphaseClassifier {
+
+    // Names of the feature rows of the csv file, in the order expected by the random forest
+    static final String[] FEATURE_NAMES = {"majors", "minors", "area", "perimeter", "circularity", "AR", "roundness", "solidity", "nucl_std_in", "nucl_std_out", "nucl_mean_in", "nucl_mean_out"};
+
+    // User parameters
+    final Parameters params;
+
+    /**
+     * Constructor for ForestClassifier.
+     *
+     * @param params User parameters with the Python environment, the temporary folder and the watchdog settings
+     */
+    public ForestClassifier(Parameters params) {
+        this.params = params;
+    }
+
+    @Override
+    public int classify(FovFeatures features, String name) throws Watchdog.StageFailedException {
+        int nROI = features.n;
+        String csv_path = params.tempPath + "/data_" + name + ".csv"; //path of csv file with the feature of each ROI
+
+        /////////////////////////////////////////////////////////////
+        // create csv file with all the features of each csv
+
+        double[][] arrays = {features.majors, features.minors, features.area, features.perimeter, features.circularity, features.AR, features.roundness, features.solidity, features.nucl_std_in, features.nucl_std_out, features.nucl_mean_in, features.nucl_mean_out};
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(csv_path))) {
+            // columns for classification
+            writer.write("idx");
+            for (int j = 0; j < nROI; j++) {
+                writer.write("," + (double) (j + 1)); //Attention the numbers shown by the ROI manager starts from 1
+            }
+            writer.newLine();
+            writer.write("label");
+            for (int j = 0; j < nROI; j++) {
+                writer.write("," + 0.0);
+            }
+            writer.newLine();
+            for (int i = 0; i < arrays.length; i++) {
+                writer.write(FEATURE_NAMES[i]);
+                for (int j = 0; j < nROI; j++) {
+                    writer.write("," + arrays[i][j]);
+                }
+                writer.newLine();
+            }
+
+            System.out.println("CSV file written successfully.");
+        } catch (IOException e) {
+            System.err.println("Error writing CSV file: " + e.getMessage());
+        }
+
+        /////////////////////////////////////////////////////////////
+        // run the random forest
+
+        String classify_metaphse_script_path = Paths.get(params.pythonEnvDir, "classify_metaphase/classify_metaphase_random_forest.py").toString();
+        String rf_path = Paths.get(params.pythonEnvDir, "classify_metaphase/rf_model.joblib").toString(); //path to the random forest file
+        String[] command = {ProcessRunner.pythonExecutable(params.pythonEnvDir), classify_metaphse_script_path, csv_path, rf_path};
+
+        // the classifier is idempotent, so a slow run can be hedged with a second one
+        ProcessRunner p = Watchdog.call("Random forest " + name,
+                () -> ProcessRunner.run(command, params.python_timeout_s),
+                0, params.stage_max_retries, params.python_hedge_s);
+
+        int nPredictions = 0;
+        try {
+            // the predictions go straight into the metaphase column, one line per ROI
+            for (String line : p.stdout) {
+                if (nPredictions < nROI)
+                    features.metaphase[nPredictions] = Integer.parseInt(line.trim());
+                nPredictions++;
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Unexpected output of the random forest: " + e.getMessage());
+        }
+        // Capture error output
+        for (String error : p.stderr) {
+            System.out.println("Python Error: " + error);
+        }
+        if (p.exitCode == 0) {
+            System.out.println("Python script executed successfully.");
+        } else {
+            System.out.println("Error executing Python script. Exit code: " + p.exitCode);
+        }
+        return nPredictions;
+    }
+}
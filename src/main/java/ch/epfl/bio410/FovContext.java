@@ -0,0 +1,81 @@
+package ch.epfl.bio410;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+/**
+ * This class holds the state of one WellEntry while it goes through the stages of the analysis:
+ * the decoded channels, the preprocessed images, the ROIs and the features.
+ * It is handed from one stage to the next through a queue, so only one stage works on it at a time.
+ */
+public class FovContext {
+
+    // The analyzed WellEntry
+    final WellEntry entry;
+
+    // Well containing the entry, null when the caller records the result itself
+    final Well well;
+
+    // Decoded red (nucleus) and yellow (YFP) channels, null if they could not be loaded
+    final ImagePlus nucl, yfp;
+
+    // Pool lending the pixel buffers and the feature columns of this entry
+    final BufferPool pool;
+
+    // Entry as given by the FovScheduler, released once the entry is written, null if not scheduled
+    final FovScheduler.LoadedEntry loaded;
+
+    // Parameters of the initial filtering: the user thresholds, or the loosest ones of the sweep
+    Parameters filter;
+
+    // Standard deviation of the whole yfp channel
+    double yfpStd;
+
+    // Preprocessed copy of the nucleus channel, and the image given to Stardist
+    ImagePlus nuclDup, stardistInput;
+
+    // true if stardistInput is already normalized by percentiles
+    boolean normalized = false;
+
+    // ROIs found by Stardist, then the ROIs kept by the initial filtering
+    Roi[] rois;
+
+    // Features of the kept ROIs, null if the analysis stopped before
+    FovFeatures features;
+
+    // Type of each cell (-1 if not counted), null if the classification did not run
+    int[] types;
+
+    // ROIs of the cells in metaphase, archived when the entry is written
+    Roi[] finalRois;
+
+    /**
+     * Constructor for FovContext.
+     *
+     * @param entry  The WellEntry to analyze
+     * @param well   The Well containing the entry, or null
+     * @param nucl   The decoded red (nucleus) channel
+     * @param yfp    The decoded yellow (YFP) channel
+     * @param pool   Pool lending the buffers of this entry
+     * @param loaded The entry given by the FovScheduler, or null
+     */
+    FovContext(WellEntry entry, Well well, ImagePlus nucl, ImagePlus yfp, BufferPool pool, FovScheduler.LoadedEntry loaded) {
+        this.entry = entry;
+        this.well = well;
+        this.nucl = nucl;
+        this.yfp = yfp;
+        this.pool = pool;
+        this.loaded = loaded;
+    }
+
+    /**
+     * Drops the pixels of the images of this entry, once its results and QC images are handed over.
+     * The images are never shown, so they are flushed instead of closed with "Close All",
+     * which would also close the images of the other entries in flight.
+     */
+    void flush() {
+        for (ImagePlus imp : new ImagePlus[]{nucl, yfp, nuclDup, stardistInput}) {
+            if (imp != null) imp.flush();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package ch.epfl.bio410;
+
+import java.util.Arrays;
+
+/**
+ * This class stores the per-cell features measured on one WellEntry.
+ * The cells are the ROIs found by Stardist that passed the initial filtering,
+ * so that the final counts can be recomputed for other thresholds without segmenting the image again.
+ */
+public class FovFeatures {
+
+    // Standard deviation of the whole yfp channel, used by the noise filter
+    double yfp_std;
+
+    // Total number of nuclei found by Stardist
+    float total_nuclei;
+
+    // Number of cells stored
+    int n;
+
+    // Shape features measured on the nucl channel
+    double[] majors, minors, area, perimeter, circularity, AR, roundness, solidity;
+
+    // Intensity features of the nucl channel, inside the cell and in the external band
+    double[] nucl_std_in, nucl_std_out, nucl_mean_in, nucl_mean_out;
+
+    // Intensity features of the yfp channel, inside the cell and in the external band
+    // Only measured for the cells in metaphase, NaN for the others
+    double[] yfp_mean_in, yfp_mean_out;
+
+    // Prediction of the random forest, 1 for cells in metaphase
+    int[] metaphase;
+
+    // false if the random forest did not return one prediction per cell
+    boolean classified = true;
+
+    // Pool lending the columns, null if the columns must outlive the analysis of the entry (sweep)
+    final BufferPool pool;
+
+    /**
+     * Constructor for FovFeatures.
+     * The columns may be longer than n when they come from a BufferPool, only the first n values are used.
+     *
+     * @param yfp_std      Standard deviation of the whole yfp channel
+     * @param total_nuclei Total number of nuclei found by Stardist
+     * @param n            Number of cells that passed the initial filtering
+     * @param pool         Pool lending the columns, or null to allocate them
+     */
+    public FovFeatures(double yfp_std, float total_nuclei, int n, BufferPool pool) {
+        this.yfp_std = yfp_std;
+        this.total_nuclei = total_nuclei;
+        this.n = n;
+        this.pool = pool;
+        this.metaphase = pool != null ? pool.ints(n) : new int[n];
+    }
+
+    /**
+     * Gives a new column for the features of the n cells.
+     *
+     * @return A column of at least n values
+     */
+    double[] column() {
+        return pool != null ? pool.doubles(n) : new double[n];
+    }
+
+    /**
+     * Keeps only the values of a column for the selected cells.
+     *
+     * @param column Values measured on all the cells
+     * @param kept   true for the cells to keep
+     * @return The values of the kept cells, in the same order
+     */
+    double[] select(double[] column, boolean[] kept) {
+        double[] selected = column();
+        int k = 0;
+        for (int j = 0; j < kept.length; j++) {
+            if (kept[j]) selected[k++] = column[j];
+        }
+        return selected;
+    }
+
+    /**
+     * Checks if a cell passes the initial filtering on area and circularity.
+     * Cells on the border are already removed when the features are created.
+     *
+     * @param area        Area of the cell
+     * @param circularity Circularity of the cell
+     * @param params      Thresholds to use
+     * @return true if the cell is kept
+     */
+    static boolean passesFilter(double area, double circularity, Parameters params) {
+        return area <= params.area_max_thr && area >= params.area_min_thr && circularity <= params.circularity_threshold;
+    }
+
+    /**
+     * Computes the final statistics of a WellEntry for one combination of thresholds.
+     * The counts, ratios and comment of the entry are overwritten.
+     *
+     * @param params Thresholds to use
+     * @param entry  WellEntry receiving the statistics
+     * @return The type of each cell: 0 enriched, 1 intermediate, 2 depleted, -1 if the cell is not counted
+     */
+    public int[] evaluate(Parameters params, WellEntry entry) {
+        int[] types = new int[n];
+        Arrays.fill(types, -1);
+
+        entry.total_nuclei = total_nuclei;
+        entry.totalEnriched = 0;
+        entry.totalDepleted = 0;
+        entry.totalInter = 0;
+        entry.total_nuclei_metaphase = 0;
+        entry.enriched_to_nuclei = 0;
+        entry.depleted_to_nuclei = 0;
+        entry.intermediate_to_nuclei = 0;
+        entry.counted_yfp_mean_in = null;
+        entry.counted_yfp_mean_out = null;
+
+        if (yfp_std < params.noise_std_thr) {
+            entry.comment = WellEntry.EntryComments.NOISY;
+            return types;
+        }
+        if (total_nuclei == 0 || !classified) {
+            entry.comment = WellEntry.EntryComments.EMPTY;
+            return types;
+        }
+
+        int nMetaphase = 0;
+        for (int j = 0; j < n; j++) {
+            if (metaphase[j] == 0 || !passesFilter(area[j], circularity[j], params)) continue;
+            nMetaphase++;
+
+            double out_in = (yfp_mean_out[j] - yfp_mean_in[j]);
+            double distance = Math.abs(yfp_mean_in[j] - yfp_mean_out[j]) / Math.sqrt(2);
+
+            if (distance < params.margin) { //intermediate
+                types[j] = 1;
+                entry.totalInter++;
+            } else if ((distance > params.margin) && (out_in > 0)) { //out>in enough --> depleted
+                types[j] = 2;
+                entry.totalDepleted++;
+            } else if ((distance > params.margin) && (out_in < 0)) {
+                types[j] = 0;
+                entry.totalEnriched++;
+            }
+        }
+
+        if (nMetaphase == 0) {
+            entry.comment = WellEntry.EntryComments.NO_MITOSIS;
+            return types;
+        }
+
+        entry.comment = WellEntry.EntryComments.NORMAL;
+        entry.total_nuclei_metaphase = nMetaphase;
+        entry.counted_yfp_mean_in = new double[nMetaphase];
+        entry.counted_yfp_mean_out = new double[nMetaphase];
+        for (int j = 0, k = 0; j < n; j++) {
+            if (metaphase[j] == 0 || !passesFilter(area[j], circularity[j], params)) continue;
+            entry.counted_yfp_mean_in[k] = yfp_mean_in[j];
+            entry.counted_yfp_mean_out[k++] = yfp_mean_out[j];
+        }
+        entry.enriched_to_nuclei = entry.totalEnriched / entry.total_nuclei;
+        entry.depleted_to_nuclei = entry.totalDepleted / entry.total_nuclei;
+        entry.intermediate_to_nuclei = entry.totalInter / entry.total_nuclei;
+        return types;
+    }
+}
@@ -0,0 +1,263 @@
+package ch.epfl.bio410;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.Opener;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * This class schedules the loading of WellEntries under a memory budget.
+ * Before an entry is decoded, its footprint is estimated from the image header and
+ * the loader waits until enough of the heap and off-heap budget is free (backpressure),
+ * instead of letting the analysis fail with an OutOfMemoryError.
+ */
+public class FovScheduler {
+
+    // Number of decoded planes alive at once per FoV: nucl, yfp, their duplicates and the two channels of the composite
+    static final int HEAP_PLANES = 6;
+
+    // Off-heap bytes per pixel used by StarDist: float input (4), probability on a 2x2 grid (1), 32 distance rays on a 2x2 grid (32)
+    static final int OFFHEAP_BYTES_PER_PIXEL = 4 + 1 + 32;
+
+    // Number of pixels assumed when the header of an image cannot be read (2048x2048)
+    static final long DEFAULT_PLANE_PIXELS = 2048L * 2048L;
+
+    // Heap budget in bytes
+    final long heapBudget;
+
+    // Off-heap budget in bytes
+    final long offHeapBudget;
+
+    // Heap bytes currently admitted
+    long heapInFlight = 0;
+
+    // Off-heap bytes currently admitted
+    long offHeapInFlight = 0;
+
+    // User parameters, for the load deadline
+    final Parameters params;
+
+    // Entries decoded by the loader and waiting to be analyzed
+    private final BlockingQueue<LoadedEntry> ready = new LinkedBlockingQueue<>();
+
+    // Entries that are not loaded anymore, e.g. the next FoVs of a well whose adaptive sampling has converged
+    private volatile Predicate<WellEntry> skip = entry -> false;
+
+    // Footprint of an entry that was not admitted
+    private static final Footprint NONE = new Footprint(0, 0);
+
+    // Marker put in the queue once the loader has gone over all entries
+    private static final LoadedEntry END = new LoadedEntry(null, null, null, null);
+
+    /**
+     * Constructor for FovScheduler.
+     *
+     * @param params User parameters holding the heap and off-heap budgets in MB (0 means automatic)
+     */
+    public FovScheduler(Parameters params) {
+        this.params = params;
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        this.heapBudget = params.heap_budget_mb > 0 ? (long) (params.heap_budget_mb * 1024 * 1024) : maxHeap / 2;
+        this.offHeapBudget = params.offheap_budget_mb > 0 ? (long) (params.offheap_budget_mb * 1024 * 1024) : maxHeap / 2;
+    }
+
+    /**
+     * Estimates the memory needed to analyze a WellEntry from the dimensions and bit depth of its images.
+     *
+     * @param entry The WellEntry to estimate
+     * @param scale Downscale factor of the segmentation, the tensors shrink with its square
+     * @return The estimated footprint
+     */
+    static Footprint estimate(WellEntry entry, double scale) {
+        long[] red = planeSize(entry.redChannelPath);
+        long[] yellow = planeSize(entry.yellowChannelPath);
+        long pixels = Math.max(red[0], yellow[0]);
+        long bytesPerPixel = Math.max(red[1], yellow[1]);
+        return new Footprint(pixels * bytesPerPixel * HEAP_PLANES, (long) (pixels * OFFHEAP_BYTES_PER_PIXEL / (scale * scale)));
+    }
+
+    /**
+     * Reads the header of an image and returns the size of one decoded plane.
+     *
+     * @param path Path to the image
+     * @return The number of pixels and the number of bytes per pixel
+     */
+    static long[] planeSize(String path) {
+        if (path != null && (path.toLowerCase().endsWith(".tif") || path.toLowerCase().endsWith(".tiff"))) {
+            FileInfo[] info = Opener.getTiffFileInfo(path);
+            if (info != null && info.length > 0) {
+                return new long[]{(long) info[0].width * info[0].height, info[0].getBytesPerPixel()};
+            }
+        }
+        // unknown format, the file size of an uncompressed 16-bit image is a good upper bound
+        long fileSize = path == null ? 0 : new File(path).length();
+        return new long[]{fileSize > 0 ? fileSize / 2 : DEFAULT_PLANE_PIXELS, 2};
+    }
+
+    /**
+     * Waits until the footprint fits in the budget and reserves it.
+     * An entry larger than the whole budget is admitted alone, so that it can still be analyzed.
+     *
+     * @param footprint The footprint to reserve
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    synchronized void admit(Footprint footprint) throws InterruptedException {
+        while ((heapInFlight > 0 || offHeapInFlight > 0)
+                && (heapInFlight + footprint.heap > heapBudget || offHeapInFlight + footprint.offHeap > offHeapBudget)) {
+            wait();
+        }
+        if (footprint.heap > heapBudget || footprint.offHeap > offHeapBudget) {
+            System.out.println("Warning: a single FoV needs more memory than the budget, it is analyzed alone.");
+        }
+        heapInFlight += footprint.heap;
+        offHeapInFlight += footprint.offHeap;
+    }
+
+    /**
+     * Gives back the memory reserved for a footprint and wakes up the loader.
+     *
+     * @param footprint The footprint to release
+     */
+    synchronized void release(Footprint footprint) {
+        heapInFlight -= footprint.heap;
+        offHeapInFlight -= footprint.offHeap;
+        notifyAll();
+    }
+
+    /**
+     * Starts a loader thread that decodes the entries ahead of the analysis, as long as the budget allows it.
+     *
+     * @param entries The WellEntries to load, in order
+     */
+    public void start(List<WellEntry> entries) {
+        start(entries, 1);
+    }
+
+    /**
+     * Starts loader threads that decode the entries ahead of the analysis, as long as the budget allows it.
+     * With several loaders, the entries are taken in order but may be ready out of order.
+     *
+     * @param entries The WellEntries to load, in order
+     * @param threads Number of loader threads
+     */
+    public void start(List<WellEntry> entries, int threads) {
+        Iterator<WellEntry> pending = entries.iterator();
+        int nLoaders = Math.max(1, threads);
+        AtomicInteger running = new AtomicInteger(nLoaders);
+        for (int t = 0; t < nLoaders; t++) {
+            Thread loader = new Thread(() -> {
+                try {
+                    while (true) {
+                        WellEntry entry;
+                        synchronized (pending) {
+                            if (!pending.hasNext()) break;
+                            entry = pending.next();
+                        }
+                        if (skip.test(entry)) continue;
+                        // an entry that cannot be estimated or decoded is handed over without images, the analysis marks it as failed
+                        Footprint footprint = NONE;
+                        ImagePlus nucl = null, yfp = null;
+                        try {
+                            Footprint estimated = estimate(entry, Math.max(1, params.segmentation_scale));
+                            admit(estimated);
+                            footprint = estimated;
+                            nucl = Watchdog.call("Load " + entry.name, () -> IJ.openImage(entry.redChannelPath), params.load_timeout_s, params.stage_max_retries);
+                            yfp = Watchdog.call("Load " + entry.name, () -> IJ.openImage(entry.yellowChannelPath), params.load_timeout_s, params.stage_max_retries);
+                        } catch (Watchdog.StageFailedException e) {
+                            System.err.println(e.getMessage() + ": " + e.getCause());
+                        } catch (RuntimeException | OutOfMemoryError e) {
+                            System.err.println("Error while loading the images of " + entry.name + ": " + e);
+                            nucl = null;
+                            yfp = null;
+                        }
+                        ready.put(new LoadedEntry(entry, nucl, yfp, footprint));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    if (running.decrementAndGet() == 0)
+                        ready.add(END); // the last loader marks the end
+                }
+            }, "FoV loader");
+            loader.setDaemon(true);
+            loader.start();
+        }
+    }
+
+    /**
+     * Sets the entries that are skipped by the loaders, checked just before each entry is loaded.
+     *
+     * @param skip true for the entries not to load
+     */
+    public void skipIf(Predicate<WellEntry> skip) {
+        this.skip = skip;
+    }
+
+    /**
+     * Gives the number of decoded entries waiting to be analyzed.
+     */
+    public int pending() {
+        return ready.size();
+    }
+
+    /**
+     * Waits for the next decoded entry.
+     *
+     * @return The next loaded entry, or null when all entries have been loaded
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public LoadedEntry next() throws InterruptedException {
+        LoadedEntry loaded = ready.take();
+        return loaded == END ? null : loaded;
+    }
+
+    /**
+     * Releases the memory of an entry once its analysis is done.
+     *
+     * @param loaded The entry returned by next()
+     */
+    public void release(LoadedEntry loaded) {
+        release(loaded.footprint);
+    }
+
+    /**
+     * Estimated memory needed to analyze one WellEntry, in bytes.
+     */
+    static class Footprint {
+        // Bytes of pixel arrays on the Java heap
+        final long heap;
+
+        // Bytes of native tensors used by StarDist
+        final long offHeap;
+
+        Footprint(long heap, long offHeap) {
+            this.heap = heap;
+            this.offHeap = offHeap;
+        }
+    }
+
+    /**
+     * A WellEntry with its two decoded channels.
+     */
+    public static class LoadedEntry {
+        final WellEntry entry;
+        final ImagePlus nucl;
+        final ImagePlus yfp;
+        final Footprint footprint;
+
+        LoadedEntry(WellEntry entry, ImagePlus nucl, ImagePlus yfp, Footprint footprint) {
+            this.entry = entry;
+            this.nucl = nucl;
+            this.yfp = yfp;
+            this.footprint = footprint;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package ch.epfl.bio410;
+
+import de.lighti.clipper.Clipper;
+import de.lighti.clipper.DefaultClipper;
+import de.lighti.clipper.Path;
+import de.lighti.clipper.Paths;
+import de.lighti.clipper.Point.LongPoint;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import net.imagej.Dataset;
+import net.imagej.axis.Axes;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class is the non-maximum suppression of the star-convex polygons predicted by Stardist,
+ * with a uniform grid over the bounding boxes, so that the exact overlaps are only computed for nearby candidates.
+ * The rule is the one of Stardist: the candidates are visited by decreasing score, and a candidate is suppressed
+ * if its overlap (intersection over the smaller area) with a kept candidate is above the threshold.
+ * The overlaps are computed in parallel horizontal strips, then a sequential greedy pass over the sorted
+ * candidates gives the same result as the pairwise suppression.
+ */
+public class GridNms {
+
+    // Pairwise suppression inside Stardist
+    static final String MODE_STARDIST = "Stardist (pairwise)";
+
+    // Suppression with the grid index of this class
+    static final String MODE_GRID = "Grid index";
+
+    // Choices shown in the GUI
+    static final String[] MODES = {MODE_STARDIST, MODE_GRID};
+
+    // Fixed-point scale of the polygon coordinates given to Clipper
+    static final double CLIPPER_SCALE = 1000;
+
+    // Threads computing the overlaps, daemon threads so that they never keep Fiji alive
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "Grid NMS");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // Vertices of the candidates, sorted by decreasing score
+    final float[][] xs, ys;
+
+    // Score of the candidates, decreasing
+    final float[] scores;
+
+    // Bounding boxes {minX, minY, maxX, maxY} of the candidates
+    final float[][] boxes;
+
+    // Polygons of the candidates in the fixed-point coordinates of Clipper, and their areas
+    final Path[] paths;
+    final double[] areas;
+
+    /**
+     * Builds the candidates from the probability and distance maps of the Stardist network.
+     * The maps may be subsampled by the grid of the network, the polygons are in image coordinates.
+     *
+     * @param prob       Object probability, one value per map pixel (row-major)
+     * @param dist       Distances along each ray, dist[k] holds ray k for every map pixel
+     * @param width      Width of the maps
+     * @param height     Height of the maps
+     * @param grid       Subsampling of the maps relative to the image
+     * @param probThresh Minimum probability of a candidate
+     */
+    public GridNms(float[] prob, float[][] dist, int width, int height, int grid, double probThresh) {
+        int nRays = dist.length;
+        List<Integer> kept = new ArrayList<>();
+        for (int i = 0; i < width * height; i++) {
+            if (prob[i] > probThresh) kept.add(i);
+        }
+        // decreasing score, the scan order breaks ties (the sort is stable)
+        kept.sort(Comparator.comparingDouble((Integer i) -> prob[i]).reversed());
+
+        int n = kept.size();
+        xs = new float[n][];
+        ys = new float[n][];
+        scores = new float[n];
+        boxes = new float[n][];
+        paths = new Path[n];
+        areas = new double[n];
+        for (int c = 0; c < n; c++) {
+            int i = kept.get(c);
+            float cx = (i % width) * grid, cy = (i / width) * grid;
+            float[] x = new float[nRays], y = new float[nRays];
+            float[] box = {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            Path path = new Path(nRays);
+            for (int k = 0; k < nRays; k++) {
+                double phi = 2 * Math.PI * k / nRays;
+                x[k] = (float) (cx + dist[k][i] * Math.cos(phi));
+                y[k] = (float) (cy + dist[k][i] * Math.sin(phi));
+                box[0] = Math.min(box[0], x[k]);
+                box[1] = Math.min(box[1], y[k]);
+                box[2] = Math.max(box[2], x[k]);
+                box[3] = Math.max(box[3], y[k]);
+                path.add(new LongPoint(Math.round(x[k] * CLIPPER_SCALE), Math.round(y[k] * CLIPPER_SCALE)));
+            }
+            xs[c] = x;
+            ys[c] = y;
+            scores[c] = prob[i];
+            boxes[c] = box;
+            paths[c] = path;
+            areas[c] = Math.abs(path.area());
+        }
+    }
+
+    /**
+     * Builds the candidates from the probability and distance maps shown by Stardist (showProbAndDist).
+     *
+     * @param prob       Probability map, X and Y axes
+     * @param dist       Distance map, X, Y and one channel per ray
+     * @param imageWidth Width of the segmented image, gives the subsampling of the maps
+     * @param probThresh Minimum probability of a candidate
+     * @return The candidates
+     */
+    public static GridNms fromStardist(Dataset prob, Dataset dist, int imageWidth, double probThresh) {
+        int width = (int) prob.dimension(prob.dimensionIndex(Axes.X));
+        int height = (int) prob.dimension(prob.dimensionIndex(Axes.Y));
+        int rayAxis = dist.dimensionIndex(Axes.CHANNEL);
+        if (rayAxis < 0) rayAxis = 2; // the maps of Stardist have the rays last
+        int nRays = (int) dist.dimension(rayAxis);
+        int grid = Math.max(1, Math.round((float) imageWidth / width));
+
+        float[] probPixels = new float[width * height];
+        RandomAccess<RealType<?>> ra = prob.getImgPlus().randomAccess();
+        int px = prob.dimensionIndex(Axes.X), py = prob.dimensionIndex(Axes.Y);
+        for (int y = 0; y < height; y++) {
+            ra.setPosition(y, py);
+            for (int x = 0; x < width; x++) {
+                ra.setPosition(x, px);
+                probPixels[y * width + x] = ra.get().getRealFloat();
+            }
+        }
+        float[][] distPixels = new float[nRays][width * height];
+        RandomAccess<RealType<?>> rd = dist.getImgPlus().randomAccess();
+        int dx = dist.dimensionIndex(Axes.X), dy = dist.dimensionIndex(Axes.Y);
+        for (int k = 0; k < nRays; k++) {
+            rd.setPosition(k, rayAxis);
+            for (int y = 0; y < height; y++) {
+                rd.setPosition(y, dy);
+                for (int x = 0; x < width; x++) {
+                    rd.setPosition(x, dx);
+                    distPixels[k][y * width + x] = rd.get().getRealFloat();
+                }
+            }
+        }
+        return new GridNms(probPixels, distPixels, width, height, grid, probThresh);
+    }
+
+    /**
+     * Gives the number of candidates.
+     */
+    public int size() {
+        return scores.length;
+    }
+
+    /**
+     * Suppresses the overlapping candidates.
+     *
+     * @param threshold Overlap above which the candidate with the lower score is suppressed (nmsThresh of Stardist)
+     * @param strips    Number of horizontal strips computed in parallel
+     * @return The indices of the kept candidates, by decreasing score
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public int[] suppress(double threshold, int strips) throws InterruptedException {
+        int n = size();
+        if (n == 0) return new int[0];
+
+        /////////////////////////////////////////////////////////////
+        // Uniform grid over the bounding boxes, one cell is as large as the largest box
+
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, cell = 1;
+        for (float[] box : boxes) {
+            minX = Math.min(minX, box[0]);
+            minY = Math.min(minY, box[1]);
+            maxX = Math.max(maxX, box[2]);
+            maxY = Math.max(maxY, box[3]);
+            cell = Math.max(cell, Math.max(box[2] - box[0], box[3] - box[1]));
+        }
+        final int cols = (int) ((maxX - minX) / cell) + 1, rows = (int) ((maxY - minY) / cell) + 1;
+        final float originX = minX, originY = minY, size = cell;
+        // candidates of each cell (by the top-left corner of their box), in decreasing score
+        final int[][] cells = new int[cols * rows][];
+        int[] counts = new int[cols * rows];
+        int[] cellOf = new int[n];
+        for (int c = 0; c < n; c++) {
+            int gx = (int) ((boxes[c][0] - originX) / size), gy = (int) ((boxes[c][1] - originY) / size);
+            cellOf[c] = gy * cols + gx;
+            counts[cellOf[c]]++;
+        }
+        for (int g = 0; g < cells.length; g++) cells[g] = new int[counts[g]];
+        Arrays.fill(counts, 0);
+        for (int c = 0; c < n; c++) cells[cellOf[c]][counts[cellOf[c]]++] = c;
+
+        /////////////////////////////////////////////////////////////
+        // Overlap graph: for each candidate, the lower-score candidates it would suppress, by strips of grid rows
+
+        final int[][] suppresses = new int[n][];
+        int nStrips = Math.max(1, Math.min(strips, rows));
+        List<Future<?>> running = new ArrayList<>();
+        for (int s = 0; s < nStrips; s++) {
+            final int rowStart = s * rows / nStrips, rowEnd = (s + 1) * rows / nStrips;
+            running.add(executor.submit(() -> {
+                DefaultClipper clipper = new DefaultClipper();
+                int[] buffer = new int[16];
+                for (int gy = rowStart; gy < rowEnd; gy++) {
+                    for (int gx = 0; gx < cols; gx++) {
+                        for (int i : cells[gy * cols + gx]) {
+                            int found = 0;
+                            // a box can only touch boxes whose top-left corner is in the 3x3 neighbouring cells
+                            for (int ny = Math.max(0, gy - 1); ny <= Math.min(rows - 1, gy + 1); ny++) {
+                                for (int nx = Math.max(0, gx - 1); nx <= Math.min(cols - 1, gx + 1); nx++) {
+                                    for (int j : cells[ny * cols + nx]) {
+                                        if (j <= i || !intersects(boxes[i], boxes[j])) continue;
+                                        if (overlap(clipper, i, j) > threshold) {
+                                            if (found == buffer.length) buffer = Arrays.copyOf(buffer, 2 * found);
+                                            buffer[found++] = j;
+                                        }
+                                    }
+                                }
+                            }
+                            suppresses[i] = Arrays.copyOf(buffer, found);
+                        }
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> f : running) f.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error computing the polygon overlaps", e.getCause());
+        } catch (InterruptedException e) {
+            for (Future<?> f : running) f.cancel(true);
+            throw e;
+        }
+
+        /////////////////////////////////////////////////////////////
+        // Greedy pass by decreasing score, as the pairwise suppression
+
+        boolean[] suppressed = new boolean[n];
+        int[] winners = new int[n];
+        int nWinners = 0;
+        for (int i = 0; i < n; i++) {
+            if (suppressed[i]) continue;
+            winners[nWinners++] = i;
+            for (int j : suppresses[i]) suppressed[j] = true;
+        }
+        return Arrays.copyOf(winners, nWinners);
+    }
+
+    /**
+     * Gives the ROI of a candidate.
+     *
+     * @param i Index of the candidate
+     * @return The polygon, in image coordinates
+     */
+    public Roi roi(int i) {
+        return new PolygonRoi(xs[i], ys[i], Roi.POLYGON);
+    }
+
+    /**
+     * Checks if two bounding boxes intersect.
+     */
+    static boolean intersects(float[] a, float[] b) {
+        return a[0] < b[2] && b[0] < a[2] && a[1] < b[3] && b[1] < a[3];
+    }
+
+    /**
+     * Computes the overlap of two candidates: the area of their intersection over the smaller of their areas.
+     */
+    double overlap(DefaultClipper clipper, int i, int j) {
+        double smaller = Math.min(areas[i], areas[j]);
+        if (smaller <= 0) return 0;
+        clipper.clear();
+        clipper.addPath(paths[i], Clipper.PolyType.SUBJECT, true);
+        clipper.addPath(paths[j], Clipper.PolyType.CLIP, true);
+        Paths solution = new Paths();
+        clipper.execute(Clipper.ClipType.INTERSECTION, solution);
+        double inter = 0;
+        for (Path p : solution) inter += Math.abs(p.area());
+        return inter / smaller;
+    }
+}
@@ -0,0 +1,216 @@
+package ch.epfl.bio410;
+
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * This class holds the per-ROI kernels of the feature stage: masked pixel count, sum and sum of squares,
+ * and the spatial moments of the mask, for 16-bit and float images.
+ * The inner loops work on the primitive arrays, are branch-free (the mask is a 0/1 factor)
+ * and use four independent accumulators, so that the JIT can unroll and vectorize them.
+ * The 16-bit sums are exact integers, as in the statistics of ImageJ.
+ */
+public class IntensityKernels {
+
+    /**
+     * This class accumulates the sums of one ROI.
+     * The coordinates of the moments are relative to the top-left corner of the ROI bounds, as in the EllipseFitter of ImageJ.
+     */
+    public static class Moments {
+
+        // Number of pixels in the mask
+        long n;
+
+        // Sum and sum of squares of the pixel values
+        double sum, sumSquares;
+
+        // Spatial moments of the mask: sums of x, y, x*x, y*y and x*y
+        double xSum, ySum, x2Sum, y2Sum, xySum;
+
+        /**
+         * Gives the mean of the pixel values.
+         */
+        public double mean() {
+            return n == 0 ? Double.NaN : sum / n;
+        }
+
+        /**
+         * Gives the sample standard deviation of the pixel values, as in the StdDev column of Measure.
+         */
+        public double stdDev() {
+            return BandStats.meanAndStd(n, sum, sumSquares)[1];
+        }
+
+        /**
+         * Gives the axes of the ellipse with the same area and second moments as the mask, as "Fit Ellipse".
+         *
+         * @return {major, minor} in pixels
+         */
+        public double[] ellipse() {
+            if (n == 0) return new double[]{0, 0};
+            // central moments, with the 1/12 of the pixel extent
+            double xm = xSum / n, ym = ySum / n;
+            double u20 = (x2Sum + n / 12.0) / n - xm * xm;
+            double u02 = (y2Sum + n / 12.0) / n - ym * ym;
+            double u11 = xySum / n - xm * ym;
+            // eigenvalues of the covariance matrix
+            double half = (u20 + u02) / 2;
+            double root = Math.sqrt(Math.max(0, (u20 - u02) * (u20 - u02) / 4 + u11 * u11));
+            double l1 = half + root, l2 = Math.max(half - root, 1e-12);
+            // axes in the ratio of the eigenvalues, scaled so that the ellipse has the area of the mask
+            double ratio = Math.sqrt(l1 / l2);
+            double major = 2 * Math.sqrt(n / Math.PI * ratio);
+            double minor = 2 * Math.sqrt(n / Math.PI / ratio);
+            return new double[]{major, minor};
+        }
+    }
+
+    /**
+     * Accumulates the sums of the pixels of an image inside a mask.
+     *
+     * @param ip   The image, 16-bit or float (other types are read with getf)
+     * @param mask Mask of the ROI with the size of the bounds, non-zero inside, or null for the whole rectangle
+     * @param r    Bounds of the ROI in the image, may extend beyond the image
+     * @return The sums of the ROI
+     */
+    public static Moments measure(ImageProcessor ip, ImageProcessor mask, Rectangle r) {
+        Moments m = new Moments();
+        byte[] maskPixels = mask == null ? null : (byte[]) mask.getPixels();
+        int width = ip.getWidth();
+        int x0 = Math.max(0, r.x), x1 = Math.min(width, r.x + r.width);
+        int y0 = Math.max(0, r.y), y1 = Math.min(ip.getHeight(), r.y + r.height);
+        if (x1 <= x0 || y1 <= y0) return m;
+
+        Object pixels = ip.getPixels();
+        double[] row = new double[5]; // {count, sum of x, sum, sum of squares, sum of x*x} of one row
+        for (int y = y0; y < y1; y++) {
+            int offset = y * width;
+            int maskOffset = (y - r.y) * r.width - r.x;
+            if (pixels instanceof short[]) {
+                shortRow((short[]) pixels, offset, maskPixels, maskOffset, x0, x1, row);
+            } else if (pixels instanceof float[]) {
+                floatRow((float[]) pixels, offset, maskPixels, maskOffset, x0, x1, row);
+            } else {
+                genericRow(ip, y, maskPixels, maskOffset, x0, x1, row);
+            }
+            long count = (long) row[0];
+            double rowX = row[1] - (double) r.x * count; // x relative to the bounds
+            double rowX2 = row[4] - 2.0 * r.x * row[1] + (double) r.x * r.x * count;
+            int ry = y - r.y;
+            m.n += count;
+            m.sum += row[2];
+            m.sumSquares += row[3];
+            m.xSum += rowX;
+            m.ySum += (double) ry * count;
+            m.xySum += rowX * ry;
+            m.x2Sum += rowX2;
+            m.y2Sum += (double) ry * ry * count;
+        }
+        return m;
+    }
+
+    /**
+     * Sums one row of a 16-bit image, exact in longs.
+     */
+    static void shortRow(short[] pixels, int offset, byte[] mask, int maskOffset, int x0, int x1, double[] row) {
+        long c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+        long xs0 = 0, xs1 = 0, xs2 = 0, xs3 = 0;
+        long xx0 = 0, xx1 = 0, xx2 = 0, xx3 = 0;
+        long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        long q0 = 0, q1 = 0, q2 = 0, q3 = 0;
+        int x = x0;
+        for (; x + 3 < x1; x += 4) {
+            int m0 = bit(mask, maskOffset + x), m1 = bit(mask, maskOffset + x + 1);
+            int m2 = bit(mask, maskOffset + x + 2), m3 = bit(mask, maskOffset + x + 3);
+            long v0 = (pixels[offset + x] & 0xffff) * m0, v1 = (pixels[offset + x + 1] & 0xffff) * m1;
+            long v2 = (pixels[offset + x + 2] & 0xffff) * m2, v3 = (pixels[offset + x + 3] & 0xffff) * m3;
+            c0 += m0; c1 += m1; c2 += m2; c3 += m3;
+            xs0 += (long) x * m0; xs1 += (long) (x + 1) * m1; xs2 += (long) (x + 2) * m2; xs3 += (long) (x + 3) * m3;
+            xx0 += (long) x * x * m0; xx1 += (long) (x + 1) * (x + 1) * m1; xx2 += (long) (x + 2) * (x + 2) * m2; xx3 += (long) (x + 3) * (x + 3) * m3;
+            s0 += v0; s1 += v1; s2 += v2; s3 += v3;
+            q0 += v0 * v0; q1 += v1 * v1; q2 += v2 * v2; q3 += v3 * v3;
+        }
+        for (; x < x1; x++) {
+            int m0 = bit(mask, maskOffset + x);
+            long v0 = (pixels[offset + x] & 0xffff) * m0;
+            c0 += m0;
+            xs0 += (long) x * m0;
+            xx0 += (long) x * x * m0;
+            s0 += v0;
+            q0 += v0 * v0;
+        }
+        row[0] = c0 + c1 + c2 + c3;
+        row[1] = xs0 + xs1 + xs2 + xs3;
+        row[4] = xx0 + xx1 + xx2 + xx3;
+        row[2] = s0 + s1 + s2 + s3;
+        row[3] = q0 + q1 + q2 + q3;
+    }
+
+    /**
+     * Sums one row of a float image.
+     */
+    static void floatRow(float[] pixels, int offset, byte[] mask, int maskOffset, int x0, int x1, double[] row) {
+        long c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+        long xs0 = 0, xs1 = 0, xs2 = 0, xs3 = 0;
+        long xx0 = 0, xx1 = 0, xx2 = 0, xx3 = 0;
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        double q0 = 0, q1 = 0, q2 = 0, q3 = 0;
+        int x = x0;
+        for (; x + 3 < x1; x += 4) {
+            int m0 = bit(mask, maskOffset + x), m1 = bit(mask, maskOffset + x + 1);
+            int m2 = bit(mask, maskOffset + x + 2), m3 = bit(mask, maskOffset + x + 3);
+            double v0 = pixels[offset + x] * m0, v1 = pixels[offset + x + 1] * m1;
+            double v2 = pixels[offset + x + 2] * m2, v3 = pixels[offset + x + 3] * m3;
+            c0 += m0; c1 += m1; c2 += m2; c3 += m3;
+            xs0 += (long) x * m0; xs1 += (long) (x + 1) * m1; xs2 += (long) (x + 2) * m2; xs3 += (long) (x + 3) * m3;
+            xx0 += (long) x * x * m0; xx1 += (long) (x + 1) * (x + 1) * m1; xx2 += (long) (x + 2) * (x + 2) * m2; xx3 += (long) (x + 3) * (x + 3) * m3;
+            s0 += v0; s1 += v1; s2 += v2; s3 += v3;
+            q0 += v0 * v0; q1 += v1 * v1; q2 += v2 * v2; q3 += v3 * v3;
+        }
+        for (; x < x1; x++) {
+            int m0 = bit(mask, maskOffset + x);
+            double v0 = pixels[offset + x] * m0;
+            c0 += m0;
+            xs0 += (long) x * m0;
+            xx0 += (long) x * x * m0;
+            s0 += v0;
+            q0 += v0 * v0;
+        }
+        row[0] = c0 + c1 + c2 + c3;
+        row[1] = xs0 + xs1 + xs2 + xs3;
+        row[4] = xx0 + xx1 + xx2 + xx3;
+        row[2] = (s0 + s1) + (s2 + s3);
+        row[3] = (q0 + q1) + (q2 + q3);
+    }
+
+    /**
+     * Sums one row of an image of another type, pixel by pixel.
+     */
+    static void genericRow(ImageProcessor ip, int y, byte[] mask, int maskOffset, int x0, int x1, double[] row) {
+        long c = 0, xs = 0, xx = 0;
+        double s = 0, q = 0;
+        for (int x = x0; x < x1; x++) {
+            if (bit(mask, maskOffset + x) == 0) continue;
+            double v = ip.getf(x, y);
+            c++;
+            xs += x;
+            xx += (long) x * x;
+            s += v;
+            q += v * v;
+        }
+        row[0] = c;
+        row[1] = xs;
+        row[2] = s;
+        row[3] = q;
+        row[4] = xx;
+    }
+
+    /**
+     * Gives 1 if the mask is set at an index (or if there is no mask), 0 otherwise.
+     * The masks of ImageJ are 0 outside and 255 inside, so the lowest bit is the mask.
+     */
+    static int bit(byte[] mask, int index) {
+        return mask == null ? 1 : mask[index] & 1;
+    }
+}
@@ -0,0 +1,19 @@
+package ch.epfl.bio410;
+
+/**
+ * This interface predicts which of the cells kept after the initial filtering are in metaphase.
+ * The plugin uses the random forest of the Python environment, the throughput harness uses a stub.
+ */
+public interface MetaphaseClassifier {
+
+    /**
+     * Predicts the cells in metaphase of one WellEntry.
+     * The predictions are written in features.metaphase, 1 for the cells in metaphase.
+     *
+     * @param features The features of the cells, nucl IN and OUT included
+     * @param name     Name of the WellEntry, used in the logs and for the intermediate files
+     * @return The number of predictions made, which must be features.n
+     * @throws Watchdog.StageFailedException if the classifier failed or timed out on every attempt
+     */
+    int classify(FovFeatures features, String name) throws Watchdog.StageFailedException;
+}
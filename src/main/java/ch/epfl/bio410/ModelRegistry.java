@@ -0,0 +1,277 @@
+package ch.epfl.bio410;
+
+import ij.IJ;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * This class makes the Stardist networks available offline.
+ * The networks are bundled as unzipped SavedModel directories (models/GenericNetwork_*, shipped with the plugin),
+ * which is the layout of the TensorFlow model cache of Fiji (Fiji.app/models).
+ * The registry validates each network once, installs it in that cache so that Stardist never downloads
+ * or unzips it, and reads its files once through a memory mapping to warm the page cache.
+ * TensorFlow opens the files itself, it does not read them from the mapping: the first load only finds them in memory.
+ * A network without all the weight shards listed by its index is never installed, Stardist would use it
+ * instead of downloading a complete one.
+ */
+public class ModelRegistry {
+
+    // Built-in networks of Stardist
+    static final String VERSATILE = "Versatile (fluorescent nuclei)";
+    static final String DSB2018 = "DSB 2018 (from StarDist 2D paper)";
+
+    // Network given as a .zip file
+    static final String FROM_FILE = "Model (.zip) from File";
+
+    // Choices shown in the GUI
+    static final String[] CHOICES = {VERSATILE, DSB2018, FROM_FILE};
+
+    // Prefix of the directories of the cached networks
+    static final String NETWORK_PREFIX = "GenericNetwork_";
+
+    // Bundled networks validated and installed, by canonical path, so that another model_dir is processed too
+    private static final Set<String> networks = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Validates and installs the bundled networks. Each network directory is only processed once per JVM,
+     * a later analysis (e.g. a job of the daemon) with another model_dir processes the networks of that directory.
+     *
+     * @param params User parameters with the directory of the bundled networks
+     * @return true if at least one valid network of the directory is available offline
+     */
+    public static synchronized boolean prepare(Parameters params) {
+        File source = bundledDirectory(params);
+        File cache = cacheDirectory();
+        File[] dirs = source == null ? null : source.listFiles(f -> f.isDirectory() && f.getName().startsWith(NETWORK_PREFIX));
+        if (dirs == null || dirs.length == 0) {
+            System.out.println("No bundled Stardist network found in " + source + ", Stardist uses its own cache.");
+            return false;
+        }
+        boolean available = false;
+        for (File dir : dirs) {
+            try {
+                String key = dir.getCanonicalPath();
+                if (networks.contains(key)) {
+                    available = true;
+                    continue;
+                }
+                if (!isValid(dir)) {
+                    System.err.println("Incomplete Stardist network (graph, index or weight shards missing), skipped: " + dir);
+                    removeInvalid(dir, new File(cache, dir.getName()));
+                    continue;
+                }
+                File installed = install(dir, cache);
+                warm(installed);
+                networks.add(key);
+                available = true;
+                System.out.println("Stardist network available offline: " + installed);
+            } catch (IOException e) {
+                System.err.println("Unable to install the Stardist network " + dir + ": " + e.getMessage());
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Gives the inputs of the Stardist command that select the network chosen by the user.
+     *
+     * @param params User parameters with the chosen network
+     * @return The command inputs, as name/value pairs
+     */
+    public static List<Object> modelInputs(Parameters params) {
+        List<Object> inputs = new ArrayList<>();
+        inputs.add("modelChoice");
+        inputs.add(params.model_choice);
+        if (FROM_FILE.equals(params.model_choice)) {
+            inputs.add("modelFile");
+            inputs.add(new File(params.model_file));
+        }
+        return inputs;
+    }
+
+    /**
+     * Gives the directory holding the bundled networks: the one of the user, or the packaged "models" folder.
+     */
+    static File bundledDirectory(Parameters params) {
+        if (params.model_dir != null && !params.model_dir.isEmpty()) {
+            return new File(params.model_dir);
+        }
+        return packagedDirectory();
+    }
+
+    /**
+     * Finds the "models" folder shipped with the plugin: next to its jar, or at the root of the project
+     * when it runs from target/classes. The cache of Fiji is skipped, it is where the networks are installed.
+     *
+     * @return The packaged folder, or null if there is none
+     */
+    static File packagedDirectory() {
+        try {
+            File cache = cacheDirectory().getCanonicalFile();
+            File location = new File(ModelRegistry.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            File dir = location.getParentFile();
+            for (int depth = 0; depth < 3 && dir != null; depth++, dir = dir.getParentFile()) {
+                File models = new File(dir, "models").getCanonicalFile();
+                if (models.isDirectory() && !models.equals(cache)) return models;
+            }
+        } catch (Exception e) { // no code source, or not a file
+            System.err.println("Unable to locate the packaged Stardist networks: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Gives the model cache of the TensorFlow service of Fiji.
+     */
+    static File cacheDirectory() {
+        String base = IJ.getDirectory("imagej");
+        if (base == null) base = System.getProperty("user.dir");
+        return new File(base, "models");
+    }
+
+    /**
+     * Checks that a directory holds a complete network: the graph, the index of its variables
+     * and every weight shard (variables.data-*-of-*) that the index refers to.
+     */
+    static boolean isValid(File dir) throws IOException {
+        File graph = new File(dir, "saved_model.pb");
+        File index = new File(dir, "variables/variables.index");
+        if (!graph.isFile() || graph.length() == 0 || !index.isFile()) return false;
+        int shards = shardCount(index);
+        if (shards <= 0) return false;
+        for (int i = 0; i < shards; i++) {
+            File shard = new File(dir, String.format("variables/variables.data-%05d-of-%05d", i, shards));
+            if (!shard.isFile() || shard.length() == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the number of weight shards from the header of a variables index.
+     * The index is a table whose first entry has an empty key and the BundleHeaderProto as value,
+     * whose field 1 is num_shards.
+     *
+     * @return The number of shards, or -1 if the header cannot be read
+     */
+    static int shardCount(File index) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(index))) {
+            long shared = varint(in), nonShared = varint(in), length = varint(in);
+            if (shared != 0 || nonShared != 0 || length <= 0) return -1; // not the header entry
+            byte[] header = new byte[(int) length];
+            in.readFully(header);
+            InputStream proto = new ByteArrayInputStream(header);
+            while (proto.available() > 0) {
+                long tag = varint(proto);
+                if (tag == (1 << 3)) return (int) varint(proto); // num_shards, varint
+                switch ((int) (tag & 7)) {
+                    case 0: varint(proto); break;
+                    case 1: proto.skip(8); break;
+                    case 2: proto.skip(varint(proto)); break;
+                    case 5: proto.skip(4); break;
+                    default: return -1;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a base-128 varint, as written in the tables and protocol buffers of TensorFlow.
+     */
+    static long varint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new IOException("Truncated varint");
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Copies a network into the cache, unless a complete copy is already there.
+     * The files are copied to a temporary directory which is then renamed, so the cache never holds a partial copy,
+     * and an incomplete copy left by an earlier version is replaced.
+     *
+     * @return The directory of the network in the cache
+     */
+    static File install(File dir, File cache) throws IOException {
+        File target = new File(cache, dir.getName());
+        if (target.getCanonicalFile().equals(dir.getCanonicalFile()) || isValid(target)) {
+            return target;
+        }
+        Path from = dir.toPath(), to = new File(cache, dir.getName() + ".tmp").toPath();
+        delete(to);
+        try (Stream<Path> files = Files.walk(from)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                Path copy = to.resolve(from.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(copy);
+                } else {
+                    Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        delete(target.toPath());
+        Files.move(to, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return target;
+    }
+
+    /**
+     * Removes an incomplete network from the cache (e.g. installed without its weights by an earlier version),
+     * so that Stardist downloads it again instead of failing to load it.
+     */
+    static void removeInvalid(File dir, File target) throws IOException {
+        if (!target.isDirectory() || target.getCanonicalFile().equals(dir.getCanonicalFile()) || isValid(target)) return;
+        delete(target.toPath());
+        System.err.println("Incomplete Stardist network removed from the cache: " + target);
+    }
+
+    /**
+     * Deletes a file or a directory with all its content, if it exists.
+     */
+    static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    /**
+     * Reads the graph and the variables of a network once through a memory mapping, to load them in the page cache.
+     * The mappings are dropped afterwards, TensorFlow opens the files itself.
+     */
+    static void warm(File dir) throws IOException {
+        List<File> files = new ArrayList<>();
+        files.add(new File(dir, "saved_model.pb"));
+        File[] variables = new File(dir, "variables").listFiles();
+        if (variables != null) {
+            for (File f : variables) files.add(f);
+        }
+        for (File f : files) {
+            if (!f.isFile() || f.length() == 0) continue;
+            try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel channel = raf.getChannel()) {
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).load();
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package ch.epfl.bio410;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class evaluates a grid of filtering and classification thresholds.
+ * Each WellEntry is segmented and measured once with the loosest thresholds of the grid,
+ * then every combination is evaluated on the cached FovFeatures and gets its own results table.
+ */
+public class ParameterSweep {
+
+    // Values of each threshold in the grid
+    double[] noise_std_thr, circularity_threshold, area_min_thr, area_max_thr, margin;
+
+    // Base parameters, copied for each combination
+    Parameters params;
+
+    /**
+     * Constructor for ParameterSweep.
+     * A threshold with an empty list keeps the value of the base parameters.
+     *
+     * @param params Base parameters holding the comma-separated values of the grid
+     */
+    public ParameterSweep(Parameters params) {
+        this.params = params;
+        this.noise_std_thr = parseValues(params.sweep_noise_std_thr, params.noise_std_thr);
+        this.circularity_threshold = parseValues(params.sweep_circularity_threshold, params.circularity_threshold);
+        this.area_min_thr = parseValues(params.sweep_area_min_thr, params.area_min_thr);
+        this.area_max_thr = parseValues(params.sweep_area_max_thr, params.area_max_thr);
+        this.margin = parseValues(params.sweep_margin, params.margin);
+    }
+
+    /**
+     * Parses a comma-separated list of values.
+     *
+     * @param values       The list of values, e.g. "0.8,0.85,0.9"
+     * @param defaultValue Value used when the list is empty
+     * @return The parsed values
+     */
+    static double[] parseValues(String values, double defaultValue) {
+        if (values == null || values.trim().isEmpty()) {
+            return new double[]{defaultValue};
+        }
+        String[] tokens = values.split(",");
+        double[] parsed = new double[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            parsed[i] = Double.parseDouble(tokens[i].trim());
+        }
+        return parsed;
+    }
+
+    /**
+     * Gives the loosest thresholds of the grid, including the base parameters.
+     * A cell rejected by these thresholds is rejected by every combination, so it does not need to be measured.
+     *
+     * @return Parameters with the loosest thresholds
+     */
+    public Parameters loosest() {
+        Parameters loose = params.copy();
+        for (double v : noise_std_thr) loose.noise_std_thr = Math.min(loose.noise_std_thr, v);
+        for (double v : circularity_threshold) loose.circularity_threshold = Math.max(loose.circularity_threshold, v);
+        for (double v : area_min_thr) loose.area_min_thr = Math.min(loose.area_min_thr, v);
+        for (double v : area_max_thr) loose.area_max_thr = Math.max(loose.area_max_thr, v);
+        return loose;
+    }
+
+    /**
+     * Builds all the combinations of the grid.
+     *
+     * @return One Parameters object per combination
+     */
+    public List<Parameters> combinations() {
+        List<Parameters> combinations = new ArrayList<>();
+        for (double noise : noise_std_thr)
+            for (double circ : circularity_threshold)
+                for (double areaMin : area_min_thr)
+                    for (double areaMax : area_max_thr)
+                        for (double m : margin) {
+                            Parameters combination = params.copy();
+                            combination.noise_std_thr = noise;
+                            combination.circularity_threshold = circ;
+                            combination.area_min_thr = areaMin;
+                            combination.area_max_thr = areaMax;
+                            combination.margin = m;
+                            combinations.add(combination);
+                        }
+        return combinations;
+    }
+
+    /**
+     * Evaluates every combination on the cached features and writes one csv file per combination
+     * in the "sweep" folder of the results, with an index file listing the thresholds of each one.
+     *
+     * @param wellsByInitial Wells to output, in the same order as output.csv
+     * @param resultsDir     Directory where results are stored
+     */
+    public void write(Map<Character, List<Well>> wellsByInitial, String resultsDir) {
+        File folder = new File(resultsDir, "sweep");
+        if (!folder.exists() && !folder.mkdirs()) {
+            System.err.println("Unable to create the sweep folder.");
+            return;
+        }
+
+        List<Parameters> combinations = combinations();
+        try (PrintWriter index = new PrintWriter(new FileWriter(new File(folder, "sweep_index.csv")))) {
+            index.println("File,Noise std deviation Threshold,Circularity Threshold,Minimum cell area,Maximum cell area,Margin");
+            for (int k = 0; k < combinations.size(); k++) {
+                Parameters combination = combinations.get(k);
+                String fileName = "output_" + k + ".csv";
+                index.println(String.format("%s,%f,%f,%f,%f,%f", fileName,
+                        combination.noise_std_thr, combination.circularity_threshold,
+                        combination.area_min_thr, combination.area_max_thr, combination.margin));
+                writeCombination(combination, wellsByInitial, new File(folder, fileName));
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing sweep results: " + e.getMessage());
+        }
+        System.out.println("Parameter sweep: " + combinations.size() + " combinations written.");
+    }
+
+    /**
+     * Evaluates one combination on all the WellEntries and writes its results table.
+     *
+     * @param combination    Thresholds to use
+     * @param wellsByInitial Wells to output
+     * @param file           csv file to write
+     * @throws IOException if the file cannot be written
+     */
+    void writeCombination(Parameters combination, Map<Character, List<Well>> wellsByInitial, File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            writer.println(WellEntry.CSV_HEADER);
+            for (Map.Entry<Character, List<Well>> entry : wellsByInitial.entrySet()) {
+                for (Well well : entry.getValue()) {
+                    for (WellEntry data : well.wellEntries.values()) {
+                        if (data.features == null) { // the entry stopped before the features were measured
+                            writer.println(data.toCsvLine(well.name));
+                            continue;
+                        }
+                        WellEntry evaluated = new WellEntry(data.name, data.fov, data.redChannelPath, data.yellowChannelPath);
+                        data.features.evaluate(combination, evaluated);
+                        writer.println(evaluated.toCsvLine(well.name));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,9 +1,14 @@
 package ch.epfl.bio410;
 
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Properties;
+
 /**
  * This class is used to store all the user input parameters in one structure.
  */
-public class Parameters {
+public class Parameters implements Cloneable {
 
         // Sigma value for the Difference of Gaussians (DoG) filter
         double sigma_dog_filter = 2;
@@ -15,6 +20,30 @@ public class Parameters {
         // Probability threshold for Stardist, default value is 0.5
         double probability_SD = 0.5;
 
+        // Stardist network, one of ModelRegistry.CHOICES
+        String model_choice = ModelRegistry.VERSATILE;
+
+        // Path to the .zip of the network when the model is given as a file
+        String model_file = "";
+
+        // Directory holding the bundled networks (models/GenericNetwork_*, with their variables.data-* shards), empty uses the models folder shipped with the plugin
+        String model_dir = "";
+
+        // Non-maximum suppression of the Stardist candidates, one of GridNms.MODES
+        String nms_mode = GridNms.MODE_STARDIST;
+
+        // Number of strips of the grid NMS computed in parallel
+        int nms_threads = Runtime.getRuntime().availableProcessors();
+
+        // Every Nth FoV of the grid NMS is also suppressed by Stardist to compare the kept ROIs, 0 disables it
+        int nms_check_every = 0;
+
+        // Downscale factor of the image segmented by Stardist, 1 segments at full resolution
+        double segmentation_scale = 1;
+
+        // Every Nth downscaled FoV is also segmented at full resolution to report the nuclei count drift, 0 disables it
+        int segmentation_drift_every = 0;
+
         // Initial filtering parameters for detected ROIs by Stardist
         // Circularity threshold for initial filtering
         double circularity_threshold = 0.9;
@@ -31,6 +60,112 @@ public class Parameters {
         // Noise standard deviation threshold for initial filtering
         double noise_std_thr = 300;
 
+        // Memory budget
+        // Heap budget in MB for the FoVs loaded at once, 0 uses half of the maximum heap
+        double heap_budget_mb = 0;
+
+        // Off-heap budget in MB for the StarDist tensors, 0 uses half of the maximum heap
+        double offheap_budget_mb = 0;
+
+        // Quality control
+        // Which FoVs get a composite and a scatter plot written in the "qc" folder, one of QcRenderer.MODES
+        String qc_mode = QcRenderer.MODE_NONE;
+
+        // Sampling of the "Every Nth FoV" mode
+        int qc_every_n = 10;
+
+        // Number of background threads rendering the QC images
+        int qc_threads = 1;
+
+        // Number of QC renderings waiting for a thread, the next samples are dropped when it is full
+        int qc_queue_capacity = 16;
+
+        // ROI archive
+        // If true, the ROIs found by Stardist and kept by the initial filtering are archived too
+        boolean roi_snapshots = false;
+
+        // If true, the final ROIs are exported as ImageJ zips (RoiSet_final_*.zip) at the end of the run
+        boolean roi_export_zips = false;
+
+        // Cascade before the random forest
+        // If true, threshold rules reject the cells surely not in metaphase, only the others go to the random forest
+        boolean cascade_enabled = false;
+
+        // Thresholds of the rules, a little looser than the ones train_cascade.py gives on the annotated FoVs
+        // There is no circularity rule: the prefilter (circularity_threshold) already removes the circular cells,
+        // and the highest circularity in metaphase (0.8996) leaves nothing stricter to fit
+        // A cell is rejected if it is less elongated than this (aspect ratio of the fitted ellipse)
+        double cascade_min_aspect_ratio = 1.40;
+
+        // ... or if the standard deviation of its nucl intensity is lower than this
+        double cascade_min_nucl_std_in = 300;
+
+        // If true, the random forest also classifies the rejected cells and its predictions are kept,
+        // to report the recall of the cascade against the random forest
+        boolean cascade_audit = false;
+
+        // Staged pipeline
+        // If true, the stages of the analysis run at the same time on different FoVs, connected by bounded queues
+        boolean pipeline_staged = false;
+
+        // Threads of each stage: decoding of the images, preprocessing, Stardist, measurement, random forest and results
+        // With the pairwise NMS, Stardist gives its ROIs in the ROI Manager of ImageJ, so the segmentations take turns
+        int pipeline_load_threads = 2;
+        int pipeline_preprocess_threads = 2;
+        int pipeline_segment_threads = 1;
+        int pipeline_measure_threads = 2;
+        int pipeline_classify_threads = 2;
+        int pipeline_write_threads = 1;
+
+        // Number of FoVs waiting in front of each stage, the loaded FoVs are bounded by the memory budget
+        int pipeline_queue_capacity = 4;
+
+        // Interval in seconds between two reports of the queue depths, 0 disables it
+        double pipeline_report_s = 10;
+
+        // Adaptive sampling
+        // If true, the FoVs of a well are analyzed in a random order until the class fractions are known well enough
+        boolean adaptive_sampling = false;
+
+        // Largest width of the confidence interval of the enriched, depleted and intermediate fractions
+        double adaptive_tolerance = 0.1;
+
+        // z-score of the confidence level of the intervals, 1.96 for 95%
+        double adaptive_z = 1.96;
+
+        // Minimum number of analyzed FoVs before a well can stop
+        int adaptive_min_fovs = 3;
+
+        // Seed of the random order of the FoVs, the order also depends on the name of the well
+        int adaptive_seed = 42;
+
+        // Watchdogs
+        // Deadline in seconds to decode the two channels of a FoV, 0 disables it
+        double load_timeout_s = 120;
+
+        // Deadline in seconds of one Stardist segmentation, 0 disables it
+        double stardist_timeout_s = 600;
+
+        // Deadline in seconds of one run of a Python script, 0 disables it
+        double python_timeout_s = 120;
+
+        // Delay in seconds before a slow random forest run is hedged with a second one, 0 disables it
+        double python_hedge_s = 30;
+
+        // Number of retries of a stage that failed or timed out before the FoV is marked as failed
+        int stage_max_retries = 1;
+
+        // Parameter sweep
+        // If true, every combination of the values below is evaluated on features measured once
+        boolean sweep_mode = false;
+
+        // Comma-separated values of each threshold for the sweep, empty keeps the value above
+        String sweep_noise_std_thr = "";
+        String sweep_circularity_threshold = "";
+        String sweep_area_min_thr = "";
+        String sweep_area_max_thr = "";
+        String sweep_margin = "";
+
         // Data path
         // Directory path where data is stored
         String dataDir = "";
@@ -47,4 +182,53 @@ public class Parameters {
 
         // Help link URL
         String helpLink = "https://gitlab.epfl.ch/dcorrea/project-tst";
+
+        /**
+         * Sets the parameters given in a properties file, by field name (e.g. dataDir, probability_SD).
+         * Unknown keys are ignored, the directories get a trailing separator as in the dialog.
+         *
+         * @param properties The values, as text
+         * @throws IllegalArgumentException if a value cannot be parsed
+         */
+        public void load(Properties properties) {
+                for (Field field : Parameters.class.getDeclaredFields()) {
+                        String value = properties.getProperty(field.getName());
+                        if (value == null || Modifier.isStatic(field.getModifiers())) continue;
+                        value = value.trim();
+                        try {
+                                Class<?> type = field.getType();
+                                if (type == double.class) field.setDouble(this, Double.parseDouble(value));
+                                else if (type == int.class) field.setInt(this, Integer.parseInt(value));
+                                else if (type == boolean.class) field.setBoolean(this, Boolean.parseBoolean(value));
+                                else if (type == String.class) field.set(this, value);
+                        } catch (NumberFormatException | IllegalAccessException e) {
+                                throw new IllegalArgumentException("Invalid value for " + field.getName() + ": " + value, e);
+                        }
+                }
+                dataDir = withSeparator(dataDir);
+                resultsDir = withSeparator(resultsDir);
+                if (properties.getProperty("tempPath") == null)
+                        tempPath = resultsDir + "temp";
+        }
+
+        /**
+         * Adds a trailing separator to a non-empty directory path.
+         */
+        static String withSeparator(String dir) {
+                if (dir.isEmpty() || dir.endsWith("/") || dir.endsWith(File.separator)) return dir;
+                return dir + File.separator;
+        }
+
+        /**
+         * Creates a copy of these parameters, used to evaluate other combinations of thresholds.
+         *
+         * @return A copy of the parameters
+         */
+        public Parameters copy() {
+                try {
+                        return (Parameters) super.clone();
+                } catch (CloneNotSupportedException e) {
+                        throw new AssertionError(e);
+                }
+        }
 }
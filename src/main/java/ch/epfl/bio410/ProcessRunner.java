@@ -0,0 +1,99 @@
+package ch.epfl.bio410;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class runs an external process (our Python scripts) with a deadline.
+ * stdout and stderr are drained concurrently, so that the process cannot block on a full pipe,
+ * and the process is killed if it does not finish in time or if the calling thread is interrupted.
+ */
+public class ProcessRunner {
+
+    // Exit code of the process
+    int exitCode;
+
+    // Lines printed by the process on stdout
+    final List<String> stdout = new ArrayList<>();
+
+    // Lines printed by the process on stderr
+    final List<String> stderr = new ArrayList<>();
+
+    /**
+     * Runs a command and waits for it to finish.
+     *
+     * @param command The command and its arguments
+     * @param timeout Deadline in seconds, 0 or less means no deadline
+     * @return The finished process with its exit code and output
+     * @throws IOException          if the process cannot be started
+     * @throws InterruptedException if the calling thread is interrupted, the process is killed
+     * @throws TimeoutException     if the process did not finish in time, the process is killed
+     */
+    public static ProcessRunner run(String[] command, double timeout) throws IOException, InterruptedException, TimeoutException {
+        ProcessRunner result = new ProcessRunner();
+        Process p = new ProcessBuilder(command).start();
+        Thread outDrain = drain(p.getInputStream(), result.stdout, "stdout drain");
+        Thread errDrain = drain(p.getErrorStream(), result.stderr, "stderr drain");
+        try {
+            boolean finished;
+            if (timeout > 0) {
+                finished = p.waitFor((long) (timeout * 1000), TimeUnit.MILLISECONDS);
+            } else {
+                p.waitFor();
+                finished = true;
+            }
+            if (!finished) {
+                throw new TimeoutException(Arrays.toString(command) + " did not finish in " + timeout + " s");
+            }
+            outDrain.join();
+            errDrain.join();
+            result.exitCode = p.exitValue();
+            return result;
+        } finally {
+            if (p.isAlive()) p.destroyForcibly();
+        }
+    }
+
+    /**
+     * Starts a thread that reads all the lines of a stream into a list.
+     */
+    static Thread drain(InputStream stream, List<String> lines, String name) {
+        Thread t = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    synchronized (lines) {
+                        lines.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                // the stream is closed when the process is killed
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Gives the path to the python executable of the environment, depending on the OS.
+     *
+     * @param pythonEnvDir Path to the Python environment directory
+     * @return The path to the python executable
+     */
+    static String pythonExecutable(String pythonEnvDir) {
+        String os = System.getProperty("os.name");
+        if (os.charAt(0) == 'W') {
+            return Paths.get(pythonEnvDir, "python").toString();
+        }
+        return Paths.get(pythonEnvDir, "bin/python3.9").toString();
+    }
+}
@@ -3,20 +3,22 @@ package ch.epfl.bio410;
 import de.csbdresden.stardist.StarDist2D;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.WindowManager;
 import ij.gui.GenericDialog;
-import ij.gui.Plot;
 import ij.gui.Roi;
 import ij.measure.ResultsTable;
+import ij.plugin.RoiScaler;
 import ij.plugin.frame.RoiManager;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 import net.imagej.Dataset;
 import net.imagej.ImageJ;
 import net.imagej.ImgPlus;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import org.scijava.command.Command;
+import org.scijava.command.CommandModule;
+import org.scijava.display.Display;
 import org.scijava.plugin.Plugin;
 
-import java.awt.*;
 import java.io.*;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
@@ -24,7 +26,11 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 
@@ -39,6 +45,34 @@ public class ProjectCommand implements Command {
 	Results results = new Results();
 	// a map used to analyze and output results of the wells in alphabetical order
 	Map<Character, List<Well>> wellsByInitial = new HashMap<>();
+	// grid of thresholds evaluated on the cached features, null if the sweep mode is off
+	ParameterSweep sweep = null;
+	// background renderer of the QC images, null if no QC image is produced
+	QcRenderer qc = null;
+	// classifier of the cells in metaphase, the random forest unless set before run
+	MetaphaseClassifier classifier = null;
+	// if false, the plots of plots.py are not produced
+	boolean savePlots = true;
+	// background writer of the ROIs of each well
+	RoiArchive roiArchive = null;
+	// ImageJ2 context running Stardist, created once so that the network is only loaded once per run
+	ImageJ imageJ = null;
+	// threads of the staged pipeline shared by several analyses (the jobs of the daemon), null to create them for this run
+	ExecutorService pipelineExecutor = null;
+	// number of FoVs segmented at a lower resolution, used to sample the drift check
+	int driftCounter = 0;
+	// number of FoVs suppressed by the grid NMS, used to sample the comparison with the suppression of Stardist
+	final AtomicInteger nmsCheckCounter = new AtomicInteger();
+	// relative drift of the nuclei count between the downsampled and the full resolution segmentation
+	final RunningStats segmentationDrift = new RunningStats();
+	// width of the external band around each ROI, in the calibrated units of the image as in "Make Band..."
+	static final double SIZE_BAND = 1;
+	// lock of the ROI Manager of ImageJ, shared by all the analyses (e.g. the warm-up and the jobs of the daemon)
+	static final Object ROI_MANAGER_LOCK = new Object();
+	// Stardist runs of this analysis started under ROI_MANAGER_LOCK that may not be finished yet
+	final List<Future<CommandModule>> stardistRuns = Collections.synchronizedList(new ArrayList<>());
+	// true once Stardist did not give its maps, the next FoVs use its own suppression (set by the segment threads)
+	volatile boolean gridMapsMissing = false;
 
 	/**
 	 * Main method to run the analysis pipeline.
@@ -48,18 +82,71 @@ public class ProjectCommand implements Command {
 		if (!getUserInputParameters())
 			return;
 
+		runAnalysis();
+	}
+
+	/**
+	 * This method runs the analysis pipeline with the parameters already set, without any dialog.
+	 *
+	 * @return true if the whole plate was analyzed, false if the data folder could not be read or the analysis was interrupted
+	 */
+	public boolean runAnalysis() {
+		if (classifier == null)
+			classifier = new ForestClassifier(params);
+		if (params.cascade_enabled && !(classifier instanceof CascadeClassifier))
+			classifier = new CascadeClassifier(classifier, params);
+
 		// this parses the whole data folder and creates Wells with WellEntries.
 		// Each WellEntry corresponds to an image pair of red and yellow channel and has it's computed statistics.
-		parseDataFolder();
+		if (!parseDataFolder()) {
+			System.err.println("Unable to read the data folder " + params.dataDir);
+			return false;
+		}
+
+		if (params.sweep_mode)
+			sweep = new ParameterSweep(params);
+
+		// make the bundled Stardist networks available offline and start the context that runs them
+		ModelRegistry.prepare(params);
+		if (imageJ == null)
+			imageJ = new ImageJ();
+
+		if (!QcRenderer.MODE_NONE.equals(params.qc_mode))
+			qc = new QcRenderer(params);
+
+		roiArchive = new RoiArchive(params);
 
 		// run our analysis pipeline on all the wells
-		evaluateAllWells();
+		boolean complete = evaluateAllWells();
+
+		// wait for the last ROIs, the ImageJ zips are only written on demand
+		roiArchive.shutdown();
+		if (params.roi_export_zips)
+			RoiArchive.exportAll(params, RoiArchive.STAGE_FINAL);
+
+		// wait for the last QC images
+		if (qc != null)
+			qc.shutdown();
+
+		System.out.println(BufferPool.report());
+		if (classifier instanceof CascadeClassifier)
+			System.out.println(((CascadeClassifier) classifier).report());
+		if (segmentationDrift.n > 0)
+			System.out.println("Nuclei count drift at scale " + params.segmentation_scale + ": mean " + segmentationDrift.getMean() + ", variance " + segmentationDrift.getVariance() + " over " + segmentationDrift.n + " FoVs");
 
 		// write out csv with analysis results
 		printFullDataMetrics();
 
+		// write out csv with the aggregates per well and for the plate
+		printWellSummary();
+
+		// evaluate every combination of thresholds on the cached features
+		if (sweep != null)
+			sweep.write(wellsByInitial, params.resultsDir);
+
 		// use the output csv and create some plots
-		savePlots();
+		if (savePlots)
+			savePlots();
 
 		// clean up temp folder
 		File folder = new File(params.tempPath);
@@ -67,6 +154,7 @@ public class ProjectCommand implements Command {
 			System.out.println("Unable to delete temp folder with intermediate data.");
 		}
 
+		return complete;
 	}
 
 	/**
@@ -83,15 +171,39 @@ public class ProjectCommand implements Command {
 		gd.addMessage("Stardist parameters for cell segmentation: ");
 		gd.addNumericField("Overlap", params.overlap_SD, 2);
 		gd.addNumericField("Probability", params.probability_SD, 2);
+		gd.addChoice("Stardist model", ModelRegistry.CHOICES, params.model_choice);
+		gd.addFileField("Stardist model file (.zip), for " + ModelRegistry.FROM_FILE, params.model_file);
+		gd.addDirectoryField("Folder of the bundled Stardist networks (empty = packaged)", params.model_dir);
+		gd.addChoice("Non-maximum suppression", GridNms.MODES, params.nms_mode);
+		gd.addNumericField("Compare the grid NMS with Stardist every Nth FoV (0 = never)", params.nms_check_every, 0);
+		gd.addNumericField("Segmentation downscale factor", params.segmentation_scale, 1);
+		gd.addNumericField("Check count drift every Nth FoV (0 = never)", params.segmentation_drift_every, 0);
 		gd.addMessage("Initial filtering parameters: ");
 		gd.addNumericField("Noise std deviation Threshold", params.noise_std_thr, 2);
 		gd.addNumericField("Circularity Threshold", params.circularity_threshold, 2);
 		gd.addNumericField("Minimum cell area", params.area_min_thr, 2);
 		gd.addNumericField("Maximum cell area", params.area_max_thr, 2);
 		gd.addNumericField("Margin for SVM", params.margin, 2);
+		gd.addMessage("Quality control images: ");
+		gd.addChoice("QC images for", QcRenderer.MODES, params.qc_mode);
+		gd.addNumericField("N for every Nth FoV", params.qc_every_n, 0);
+		gd.addCheckbox("Archive the Stardist and prefiltering ROIs", params.roi_snapshots);
+		gd.addCheckbox("Export the final ROIs as ImageJ zips", params.roi_export_zips);
+		gd.addCheckbox("Reject obvious interphase cells before the random forest (cascade)", params.cascade_enabled);
+		gd.addCheckbox("Audit the cascade against the random forest", params.cascade_audit);
+		gd.addCheckbox("Run the stages concurrently (staged pipeline)", params.pipeline_staged);
+		gd.addCheckbox("Adaptive sampling: stop a well once its fractions are known", params.adaptive_sampling);
+		gd.addNumericField("Width of the confidence interval of the fractions", params.adaptive_tolerance, 2);
 		gd.addDirectoryField("Select the folder that contains data to be analyzed: ", params.dataDir);
 		gd.addDirectoryField("Select the output folder: ", params.resultsDir);
 		gd.addDirectoryField("Path to your python environment:", params.pythonEnvDir);
+		gd.addMessage("Parameter sweep (comma-separated values, empty keeps the value above): ");
+		gd.addCheckbox("Run parameter sweep", params.sweep_mode);
+		gd.addStringField("Sweep noise std deviation Thresholds", params.sweep_noise_std_thr, 20);
+		gd.addStringField("Sweep circularity Thresholds", params.sweep_circularity_threshold, 20);
+		gd.addStringField("Sweep minimum cell areas", params.sweep_area_min_thr, 20);
+		gd.addStringField("Sweep maximum cell areas", params.sweep_area_max_thr, 20);
+		gd.addStringField("Sweep margins for SVM", params.sweep_margin, 20);
 		gd.addMessage("Click Help Button for README and parameters explanation");
 		gd.addHelp(params.helpLink);
 		gd.showDialog();
@@ -100,14 +212,40 @@ public class ProjectCommand implements Command {
 		params.sigma_dog_filter = gd.getNextNumber();
 		params.overlap_SD = gd.getNextNumber();
 		params.probability_SD = gd.getNextNumber();
+		params.model_choice = gd.getNextChoice();
+		params.model_file = gd.getNextString();
+		params.model_dir = gd.getNextString();
+		params.nms_mode = gd.getNextChoice();
+		params.nms_check_every = (int) gd.getNextNumber();
+		params.segmentation_scale = gd.getNextNumber();
+		params.segmentation_drift_every = (int) gd.getNextNumber();
 		params.noise_std_thr = gd.getNextNumber();
 		params.circularity_threshold = gd.getNextNumber();
 		params.area_min_thr = gd.getNextNumber();
 		params.area_max_thr = gd.getNextNumber();
 		params.margin = gd.getNextNumber();
+		params.qc_mode = gd.getNextChoice();
+		params.qc_every_n = (int) gd.getNextNumber();
+		params.roi_snapshots = gd.getNextBoolean();
+		params.roi_export_zips = gd.getNextBoolean();
+		params.cascade_enabled = gd.getNextBoolean();
+		params.cascade_audit = gd.getNextBoolean();
+		params.pipeline_staged = gd.getNextBoolean();
+		params.adaptive_sampling = gd.getNextBoolean();
+		params.adaptive_tolerance = gd.getNextNumber();
 		params.dataDir = gd.getNextString();
 		params.resultsDir = gd.getNextString();
 		params.pythonEnvDir = gd.getNextString();
+		params.sweep_mode = gd.getNextBoolean();
+		params.sweep_noise_std_thr = gd.getNextString();
+		params.sweep_circularity_threshold = gd.getNextString();
+		params.sweep_area_min_thr = gd.getNextString();
+		params.sweep_area_max_thr = gd.getNextString();
+		params.sweep_margin = gd.getNextString();
+		if (ModelRegistry.FROM_FILE.equals(params.model_choice) && !new File(params.model_file).isFile()) {
+			System.err.println("The Stardist model file is missing: " + params.model_file);
+			return false;
+		}
 		//set temp path here
 		params.tempPath = params.resultsDir + "temp";
 
@@ -147,6 +285,7 @@ public class ProjectCommand implements Command {
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+			return false;
 		}
 
 		return true;
@@ -159,6 +298,13 @@ public class ProjectCommand implements Command {
 	 */
 	public boolean evaluateAllWells() {
 		boolean result = true;
+		if (params.pipeline_staged) {
+			// one pipeline over the whole plate, so that the stages do not drain at the end of each well
+			List<Well> wells = new ArrayList<>();
+			for (List<Well> byInitial : wellsByInitial.values())
+				wells.addAll(byInitial);
+			return new StagedPipeline(this).run(wells);
+		}
 		//PROCESS THEM IN ALPHABETICAL ORDER!
 		for (Map.Entry<Character, List<Well>> entry : wellsByInitial.entrySet()) {
 			for (Well well : entry.getValue()) {
@@ -176,12 +322,91 @@ public class ProjectCommand implements Command {
 	 */
 	public boolean analyzeWell(Well well){
 		boolean result = true;
-		for(WellEntry wellEntry : well.wellEntries.values())
-			analyzeEntry(wellEntry);
+		startSampling(well);
+		// the scheduler loads the next entries in the background as long as they fit in the memory budget
+		FovScheduler scheduler = new FovScheduler(params);
+		scheduler.skipIf(entry -> isSampled(well));
+		scheduler.start(AdaptiveSampler.order(well, params));
+		try {
+			FovScheduler.LoadedEntry loaded;
+			while ((loaded = scheduler.next()) != null) {
+				if (isSampled(well)) { // loaded ahead before the well converged
+					scheduler.release(loaded);
+					continue;
+				}
+				BufferPool pool = BufferPool.get();
+				pool.beginEntry();
+				try {
+					analyzeEntry(loaded.entry, loaded.nucl, loaded.yfp);
+					addResult(well, loaded.entry);
+				} finally {
+					pool.endEntry(); // the buffers lent for this entry are reused by the next one
+					scheduler.release(loaded);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result = false;
+		}
+		finishSampling(well);
 		return result;
 
 	}
 
+	/**
+	 * This method sets up the adaptive sampling of a Well, if it is enabled.
+	 *
+	 * @param well The Well about to be analyzed
+	 */
+	void startSampling(Well well){
+		if (params.adaptive_sampling)
+			well.sampler = new AdaptiveSampler(params);
+	}
+
+	/**
+	 * This method tells if enough FoVs of a Well have been analyzed, its next FoVs are skipped.
+	 *
+	 * @param well The Well being analyzed
+	 * @return true if the adaptive sampling of the well has converged
+	 */
+	boolean isSampled(Well well){
+		return well.sampler != null && well.sampler.isConverged();
+	}
+
+	/**
+	 * This method records a finished WellEntry in its Well and updates the adaptive sampling of the Well.
+	 *
+	 * @param well  The Well containing the entry
+	 * @param entry The finished WellEntry
+	 */
+	void addResult(Well well, WellEntry entry){
+		results.addResult(well, entry);
+		if (well.sampler != null && well.sampler.add(entry)) {
+			System.out.println("Well " + well.name + " converged after " + well.results.size() + " of " + well.wellEntries.size() + " FoVs: " + well.sampler.describe());
+		}
+	}
+
+	/**
+	 * This method ends the adaptive sampling of a Well: the FoVs that were not analyzed are recorded as not sampled,
+	 * so that the output lists every FoV and the summary gives the number of FoVs used.
+	 *
+	 * @param well The analyzed Well
+	 */
+	void finishSampling(Well well){
+		if (well.sampler == null)
+			return;
+		Set<WellEntry> analyzed = Collections.newSetFromMap(new IdentityHashMap<>());
+		analyzed.addAll(well.results);
+		for (WellEntry entry : well.wellEntries.values()) {
+			if (analyzed.contains(entry))
+				continue;
+			entry.comment = WellEntry.EntryComments.NOT_SAMPLED;
+			results.addResult(well, entry);
+		}
+		if (!well.sampler.isConverged())
+			System.out.println("Well " + well.name + " did not converge, all its FoVs were analyzed: " + well.sampler.describe());
+	}
+
 	/**
 	 * This method reads in the produced output.csv file, reads the data and outputs two new files with plots: hist_wells_fractions.png and hist_wells_raw_counts.png.
 	 *
@@ -194,32 +419,16 @@ public class ProjectCommand implements Command {
 		String plots_script_path = Paths.get(params.pythonEnvDir, "classify_metaphase/plots.py").toString();
 		String final_csv_path = Paths.get(params.resultsDir, "output.csv").toString();
 		String folder_to_save_plots = params.resultsDir;
-		String python_exe_path = "";
-
-		String os = System.getProperty("os.name"); //depending on the OS the location of the .exe python has to be adapted
-		if(os.charAt(0) == 'W'){
-			python_exe_path = Paths.get(params.pythonEnvDir, "python").toString();
-		}
-		else{
-			python_exe_path = Paths.get(params.pythonEnvDir, "bin/python3.9").toString();
-		}
-
-		String command = python_exe_path + " " + plots_script_path + " " + final_csv_path + " " + folder_to_save_plots;
-		//String[] command = {"python", classify_metaphse_script_path, csv_path};
-
-		ArrayList<Integer> pred_metapahse = new ArrayList<>();
+		String[] command = {ProcessRunner.pythonExecutable(params.pythonEnvDir), plots_script_path, final_csv_path, folder_to_save_plots};
 
 		try {
-			Process p = Runtime.getRuntime().exec(command);
+			ProcessRunner p = Watchdog.call("Plots", () -> ProcessRunner.run(command, params.python_timeout_s), 0, params.stage_max_retries);
 
 			// Capture error output
-			BufferedReader stdError = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-			String error;
-			while ((error = stdError.readLine()) != null) {
+			for (String error : p.stderr) {
 				System.out.println("Python Error: " + error);
 			}
-			// Wait for process to complete
-			int exitCode = p.waitFor();
+			int exitCode = p.exitCode;
 			if (exitCode == 0) {
 				System.out.println("Python script executed successfully.");
 			} else if (exitCode == 10) {
@@ -229,12 +438,11 @@ public class ProjectCommand implements Command {
 				System.out.println("Error executing Python script. Exit code: " + exitCode);
 			}
 
-		} catch (IOException | InterruptedException e) {
+		} catch (Watchdog.StageFailedException e) {
 			e.printStackTrace();
+			result = false;
 		}
 
-
-
 		return result;
 	}
 
@@ -245,77 +453,89 @@ public class ProjectCommand implements Command {
 	 * @return true if the analysis was successful, false otherwise
 	 */
 	public boolean analyzeEntry(WellEntry entry){
+		return analyzeEntry(entry, IJ.openImage(entry.redChannelPath), IJ.openImage(entry.yellowChannelPath));
+	}
 
-		boolean result = true;
-		// Settings
-		//String base_path = params.resultsDir;
+	/**
+	 * This method runs the analysis pipeline on a WellEntry whose channels are already loaded.
+	 * The stages run one after the other on the calling thread, StagedPipeline runs them concurrently.
+	 *
+	 * @param entry The WellEntry object to be analyzed
+	 * @param nucl  The decoded red (nucleus) channel
+	 * @param yfp   The decoded yellow (YFP) channel
+	 * @return true if the analysis was successful, false otherwise
+	 */
+	public boolean analyzeEntry(WellEntry entry, ImagePlus nucl, ImagePlus yfp){
+		FovContext ctx = new FovContext(entry, null, nucl, yfp, BufferPool.get(), null);
+		if (preprocess(ctx) && segmentStage(ctx) && measure(ctx))
+			classify(ctx);
+		return finishEntry(ctx);
+	}
+
+	/**
+	 * Preprocessing stage: noise gate on the yfp channel, then blur, background subtraction
+	 * and normalization of a copy of the nucleus channel for Stardist.
+	 *
+	 * @param ctx The entry in flight
+	 * @return true if the entry goes on to the segmentation, false if its analysis is over
+	 */
+	boolean preprocess(FovContext ctx){
+		WellEntry entry = ctx.entry;
+		ImagePlus nucl = ctx.nucl;
+		ImagePlus yfp = ctx.yfp;
 		String image_name = entry.name; //name of the Well
-		String results_path = params.resultsDir;
 		String temp_path = params.tempPath; //new folder to contain temporary files, csv, ...
-		String csv_path = temp_path + "/data_" + image_name + ".csv"; //path of csv file with the feature of each ROI
 
 		// Create temporary folder
 		File folder = new File(temp_path);
 		if (!folder.exists()) {
-			boolean created = folder.mkdir(); // Create the folder
+			boolean created = folder.mkdirs() || folder.isDirectory(); // Create the folder, another stage thread may have created it
 			if (created) {
 				System.out.println("Folder created successfully.");
 			} else {
 				System.out.println("Failed to create the folder.");
 			}
-		} else {
-			System.out.println("Folder already exists.");
 		}
 
 		/////////////////////////////////////////////////////////////
 		// Open Images
 
-		//Show nucleus
-		String nucl_path = entry.redChannelPath;
-		ImagePlus nucl = IJ.openImage(nucl_path);
-		nucl.setTitle("nucl");
-		nucl.show();
-
+		// an image that could not be decoded (or timed out) is marked as failed
+		if (nucl == null || yfp == null){
+			System.err.println("Error: unable to open the images of " + image_name);
+			entry.comment = WellEntry.EntryComments.FAILED;
+			return false;
+		}
 
-		//Show yfp
-		String yfp_path = entry.yellowChannelPath;
-		ImagePlus yfp = IJ.openImage(yfp_path);
+		nucl.setTitle("nucl");
 		yfp.setTitle("yfp");
-		yfp.show();
-
-		// Duplicate
-		ImagePlus nuclDup = nucl.duplicate();
-		nuclDup.setTitle("nuclDup");
-		nuclDup.show();
-		ImagePlus yfpDup = yfp.duplicate();
-		yfpDup.setTitle("yfpDup");
-		yfpDup.show();
-
-		//Create composite image
-		IJ.run(nuclDup, "Enhance Contrast", "saturated=0.35");
-		IJ.run(yfpDup, "Enhance Contrast", "saturated=0.35");
-		IJ.run("Merge Channels...", "c1=[nuclDup] c7=[yfpDup] create keep");
-		ImagePlus composite = WindowManager.getImage("Composite");
-		composite.setTitle("Composite");
-
-		//hide
-		nuclDup.hide();
-		yfpDup.hide();
+
+		// Duplicate, the preprocessing is done on the copy (pixels lent by the pool of this entry)
+		BufferPool pool = ctx.pool;
+		ImagePlus nuclDup = new ImagePlus("nuclDup", pool.duplicate(nucl.getProcessor()));
+		nuclDup.setCalibration(nucl.getCalibration());
+		ctx.nuclDup = nuclDup;
 
 		/////////////////////////////////////////////////////////////
 		// Remove Noisy Images, i.e. the one that have to low std
 
-		IJ.run("Clear Results", "");
-		IJ.run(yfp, "Measure", "");
-
-		ResultsTable rt = ResultsTable.getResultsTable();
+		// in sweep mode, the loosest thresholds of the grid are used so that every combination can be evaluated afterwards
+		ctx.filter = sweep != null ? sweep.loosest() : params;
 
-		double[] std = rt.getColumn("StdDev");
+		// one pass over the yfp channel gives its standard deviation
+		ChannelHistogram yfpHistogram = ChannelHistogram.of(yfp.getProcessor(), pool);
+		if (yfpHistogram != null) {
+			ctx.yfpStd = yfpHistogram.stdDev();
+		} else {
+			IJ.run("Set Measurements...", "area mean standard");
+			IJ.run("Clear Results", "");
+			IJ.run(yfp, "Measure", "");
+			ctx.yfpStd = ResultsTable.getResultsTable().getValue("StdDev", 0);
+		}
 
-		if (std[0] < params.noise_std_thr ){
+		if (ctx.yfpStd < ctx.filter.noise_std_thr ){
 			entry.comment = WellEntry.EntryComments.NOISY; //append comment to final results
-			IJ.run("Close All", ""); // Close all
-			return result; // Exit this Well
+			return false; // Exit this Well
 		}
 
 		/////////////////////////////////////////////////////////////
@@ -327,81 +547,123 @@ public class ProjectCommand implements Command {
 		// Remove background
 		IJ.run(nuclDup,"Subtract Background...", "rolling=50 stack");
 
-		// Adjust contrast
-		IJ.run(nuclDup, "Enhance Contrast", "saturated=0.35");
-		IJ.run(nuclDup, "Apply LUT", ""); //Change the value of the pixel, Stardist gets better results
-
-		/////////////////////////////////////////////////////////////
-		// Segment with Stardist
-
-		//Stardist
-		ImageJ imageJ = new ImageJ();
+		// Adjust contrast, Stardist gets better results when the pixels are changed
+		// the histogram of the preprocessed image gives the saturated limits and the percentiles of Stardist
+		ctx.stardistInput = nuclDup;
+		ChannelHistogram nuclHistogram = ChannelHistogram.of(nuclDup.getProcessor(), pool);
+		if (nuclHistogram != null) {
+			int[] table = nuclHistogram.stretch(nuclDup.getProcessor(), 0.35);
+			float[] pixels = pool.floats(nuclDup.getWidth() * nuclDup.getHeight());
+			nuclHistogram.normalize(nuclDup.getProcessor(), table, 1.0, 100.0, pixels);
+			ctx.stardistInput = new ImagePlus("nuclNorm", new FloatProcessor(nuclDup.getWidth(), nuclDup.getHeight(), pixels));
+			ctx.normalized = true;
+		} else {
+			IJ.run(nuclDup, "Enhance Contrast", "saturated=0.35");
+			IJ.run(nuclDup, "Apply LUT", "");
+		}
+		return true;
+	}
 
-		Dataset dataset = imageJ.convert().convert(new ImgPlus(ImageJFunctions.wrap(nuclDup)), Dataset.class);
+	/**
+	 * Segmentation stage: Stardist on the preprocessed image, at full resolution or downscaled.
+	 *
+	 * @param ctx The entry in flight
+	 * @return true if nuclei were found, false if the analysis of the entry is over
+	 */
+	boolean segmentStage(FovContext ctx){
+		WellEntry entry = ctx.entry;
+		String image_name = entry.name;
 
 		try {
-			imageJ.command().run(StarDist2D.class, false, "input", dataset, "modelChoice", "Versatile (fluorescent nuclei)", "normalizeInput", true, "percentileBottom", 1.0, "percentileTop", 100.0, "probThresh", params.probability_SD, "nmsThresh", params.overlap_SD, "outputType", "ROI Manager", "nTiles", 1, "excludeBoundary", 0, "roiPosition", "Automatic", "verbose", false, "showCsbdeepProgress", true, "showProbAndDist", false).get(); //, process=[false]")
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
-		} catch (ExecutionException e) {
-			throw new RuntimeException(e);
+			double scale = Math.max(1, params.segmentation_scale);
+			if (scale > 1) {
+				// segment a downsampled copy, the ROIs are mapped back to the full resolution
+				ctx.rois = segmentDownscaled(ctx.stardistInput, ctx.normalized, scale, image_name);
+				if (params.segmentation_drift_every > 0 && nextDriftCheck()) {
+					int fullCount = segment(ctx.stardistInput, ctx.normalized, "Stardist full resolution " + image_name).length;
+					entry.nuclei_count_drift = fullCount == 0 ? Float.NaN : (ctx.rois.length - fullCount) / (float) fullCount;
+					synchronized (segmentationDrift) {
+						segmentationDrift.add(entry.nuclei_count_drift);
+					}
+					System.out.println("Nuclei count drift at scale " + scale + " for " + image_name + ": " + entry.nuclei_count_drift);
+				}
+			} else {
+				ctx.rois = segment(ctx.stardistInput, ctx.normalized, "Stardist " + image_name);
+			}
+		} catch (Watchdog.StageFailedException e) {
+			System.err.println(e.getMessage() + ": " + e.getCause());
+			entry.comment = WellEntry.EntryComments.FAILED;
+			return false;
 		}
 
-		/////////////////////////////////////////////////////////////
-		// Remove ROIs that are FOR SURE not in mitosis (less computation)
-		//			too big/small
-		//			on the edges
-		//          not thin enough
-
-		RoiManager rm = RoiManager.getRoiManager();
-
-		rm.save(temp_path + "/RoiSet_stardist_" +  image_name + ".zip"); //Save ALL roi from StarDist
-
-		// get the number of ROIs within the ROI Manager
-		int nROI = rm.getCount();  //StarDist has already sent the ROIs here
+		if (params.roi_snapshots)
+			roiArchive.add(entry.wellName, image_name, RoiArchive.STAGE_STARDIST, ctx.rois); //Save ALL roi from StarDist
 
 		//if no ROI are present --> exit
-		if (nROI == 0){
+		if (ctx.rois.length == 0){
 			entry.comment = WellEntry.EntryComments.EMPTY; //append comment to the final results
-			IJ.run("Close All", "");
-			return result;
+			return false;
 		}
 
-		entry.total_nuclei = nROI; // total nuclei identified by Stardist
+		entry.total_nuclei = ctx.rois.length; // total nuclei identified by Stardist
+		return true;
+	}
 
-		// set measures to have
-		IJ.run("Set Measurements...", "area mean perimeter standard fit shape feret's integrated");
+	/**
+	 * This method tells if the drift of the current downscaled FoV is checked, every Nth FoV.
+	 */
+	boolean nextDriftCheck(){
+		synchronized (segmentationDrift) {
+			return driftCounter++ % params.segmentation_drift_every == 0;
+		}
+	}
 
-		// Measure
-		rm.deselect();
-		IJ.run("Clear Results", "");
-		rm.runCommand(nucl, "Measure");
+	/**
+	 * Measurement stage: shape and intensity features of the ROIs, initial filtering,
+	 * then the nucl intensities in the external band of the kept ROIs.
+	 *
+	 * @param ctx The entry in flight
+	 * @return true if cells are left to classify, false if the analysis of the entry is over
+	 */
+	boolean measure(FovContext ctx){
+		WellEntry entry = ctx.entry;
+		ImagePlus nucl = ctx.nucl;
+		String image_name = entry.name;
+		Roi[] rois = ctx.rois;
+		int nROI = rois.length;
 
-		rt = ResultsTable.getResultsTable();
+		/////////////////////////////////////////////////////////////
+		// Remove ROIs that are FOR SURE not in mitosis (less computation)
+		//			too big/small
+		//			on the edges
+		//          not thin enough
 
-		double[] area = rt.getColumn("Area");
-		double[] temp_circ = rt.getColumn("Circ.");
+		// Measure, the shape features and nucl IN of the kept ROIs are reused for the classification
+		// (same columns as "Measure" with area mean perimeter standard fit shape, read from the ROI masks)
+		RoiMeasurements measured = RoiMeasurements.measure(nucl, rois);
+
+		double[] area = measured.area;
+		double[] temp_circ = measured.circularity;
+		double[] all_majors = measured.major;
+		double[] all_minors = measured.minor;
+		double[] all_perimeter = measured.perimeter;
+		double[] all_AR = measured.AR; 					//Aspect ratio axis- / axis+
+		double[] all_roundness = measured.roundness;
+		double[] all_solidity = measured.solidity;
+		double[] all_nucl_std_in = measured.std;
+		double[] all_nucl_mean_in = measured.mean;
 
-		double circ_thr = params.circularity_threshold;
-		double area_min_thr = params.area_min_thr;
-		double area_max_thr = params.area_max_thr;
 		int width = nucl.getWidth();
 		int height = nucl.getHeight();
+		boolean[] kept = new boolean[nROI];
+		int nKept = 0;
 
-		for (int j=nROI-1; j>=0; j--) {
+		for (int j=0; j<nROI; j++) {
 
-			rm.select(j); // select a specific roi
-			Roi roi = rm.getRoi(j);
+			Roi roi = rois[j];
 
-			// Remove ROIs based on area
-			if ( area[j] > area_max_thr  || area[j] < area_min_thr ){
-				rm.runCommand("Delete");
-				continue;
-			}
-
-			// Remove ROI based on Circularity
-			if ( temp_circ[j] > circ_thr ){
-				rm.runCommand("Delete");
+			// Remove ROIs based on area and circularity
+			if (!FovFeatures.passesFilter(area[j], temp_circ[j], ctx.filter)){
 				continue;
 			}
 
@@ -409,297 +671,408 @@ public class ProjectCommand implements Command {
 			if (roi.getBounds().x <= 0 || roi.getBounds().y <= 0 ||
 					roi.getBounds().x + roi.getBounds().width >= width ||
 					roi.getBounds().y + roi.getBounds().height >= height) {
-				rm.runCommand("Delete");
+				continue;
 			}
 
+			kept[j] = true;
+			nKept++;
 		}
 
 		/////////////////////////////////////////////////////////////
 
-		nROI = rm.getCount(); // ROI number changes
+		nROI = nKept; // ROI number changes
+
+		// in sweep mode the features are kept to evaluate the other combinations of thresholds, so they are not pooled
+		FovFeatures features = new FovFeatures(ctx.yfpStd, entry.total_nuclei, nROI, sweep != null ? null : ctx.pool);
+		ctx.features = features;
+		if (sweep != null)
+			entry.features = features;
 
 		//if no ROI exit
 		if (nROI == 0){
-			entry.comment = WellEntry.EntryComments.NO_MITOSIS;
-			IJ.run("Close All", "");
-			return result;
+			features.evaluate(params, entry);
+			return false;
 		}
 
-		IJ.run(nucl, "From ROI Manager", "Show All with Labels");
 
 		/////////////////////////////////////////////////////////////
 		// Save ROis and change name of the ROIS
 
-		// rename ROIs
-		for (int j=nROI-1; j>=0; j--) {
-
-			rm.select(j); // select a specific roi
-			rm.runCommand("Rename", Integer.toString(j+1));
-
+		// keep the ROIs in their order, renamed from 1 as in the ROI Manager
+		Roi[] keptRois = new Roi[nROI];
+		for (int j=0, k=0; j<rois.length; j++) {
+			if (!kept[j]) continue;
+			keptRois[k] = rois[j];
+			keptRois[k].setName(Integer.toString(k+1));
+			k++;
 		}
+		ctx.rois = keptRois;
 
-		rm.deselect(); 		// deselect all the ROIs to be able to make a measurement on all ROIs
-		rm.save(temp_path + "/RoiSet_prefiltering_" +  image_name + ".zip"); //Save rois after pre filtering
-
-		/////////////////////////////////////////////////////////////
-		// Extract measurement nucl IN
-
-		rm.deselect(); 		// deselect all the ROIs to be able to make a measurement on all ROIs
-		IJ.run("Clear Results", "");
-		rm.runCommand(nucl, "Measure"); //NB calculate from nucl
-		rt = ResultsTable.getResultsTable();
-
-		double[] majors = rt.getColumn("Major");
-		double[] minors = rt.getColumn("Minor");
-		double[] perimeter = rt.getColumn("Perim.");
-		area = rt.getColumn("Area");
-		double[] circularity = rt.getColumn("Circ.");		//circularity = 4pi(area/perimeter^2), A circularity value of 1.0 indicates a perfect circle
-		double[] AR = rt.getColumn("AR"); 					//Aspect ratio axis- / axis+
-		double[] roundness = rt.getColumn("Round");
-		double[] solidity = rt.getColumn("Solidity");
-		double[] nucl_std_in = rt.getColumn("StdDev");
-		double[] nucl_mean_in = rt.getColumn("Mean");
-
-		double[] axis_ratio = new double[nROI];
-		double[] frag_ratio = new double[nROI];
-		for (int j=nROI-1; j>=0; j--) {
-			rm.select(j); // select a specific roi
-			axis_ratio[j] =  minors[j] / majors[j];
-			frag_ratio[j] = area[j] / perimeter[j];
-		}
+		if (params.roi_snapshots)
+			roiArchive.add(entry.wellName, image_name, RoiArchive.STAGE_PREFILTERING, keptRois); //Save rois after pre filtering
 
 		/////////////////////////////////////////////////////////////
-		// Extract measurement yfp IN
-
-		rm.deselect(); 		// deselect all the ROIs to be able to make a measurement on all ROIs
-		IJ.run("Clear Results", "");
-		rm.runCommand(yfp, "Measure"); //NB calculate from yfp
-		rt = ResultsTable.getResultsTable();
-
-		double[] yfp_std_in = rt.getColumn("StdDev");
-		double[] yfp_mean_in = rt.getColumn("Mean");
+		// Features nucl IN, taken from the first measurement
+
+		features.majors = features.select(all_majors, kept);
+		features.minors = features.select(all_minors, kept);
+		features.perimeter = features.select(all_perimeter, kept);
+		features.area = features.select(area, kept);
+		features.circularity = features.select(temp_circ, kept);		//circularity = 4pi(area/perimeter^2), A circularity value of 1.0 indicates a perfect circle
+		features.AR = features.select(all_AR, kept);
+		features.roundness = features.select(all_roundness, kept);
+		features.solidity = features.select(all_solidity, kept);
+		features.nucl_std_in = features.select(all_nucl_std_in, kept);
+		features.nucl_mean_in = features.select(all_nucl_mean_in, kept);
 
 		/////////////////////////////////////////////////////////////
-		// Create external band
+		// Extract measurement nucl OUT, in an external band around each ROI
+		// (read directly from the ROI masks, the yfp channel is only measured after the random forest)
 
-		double size_band = 1;
-
-		for (int j=nROI-1; j>=0; j--) {
-
-			rm.select(j); // select a specific roi
-
-			IJ.run("Make Band...", "band=" + size_band);// compute a band around the selected ROI
-			rm.runCommand("Update"); // update the selected ROI with the new shape (i.e. band)
+		ImageProcessor nuclIp = nucl.getProcessor();
+		double band_pixels = BandStats.bandPixels(SIZE_BAND, nucl.getCalibration());
 
+		features.nucl_mean_out = features.column();
+		features.nucl_std_out = features.column();
+		for (int j = 0; j < nROI; j++) {
+			double[] band = BandStats.band(nuclIp, keptRois[j], band_pixels);
+			features.nucl_mean_out[j] = band[0];
+			features.nucl_std_out[j] = band[1];
 		}
+		return true;
+	}
 
-		/////////////////////////////////////////////////////////////
-		// Extract measurement nucl OUT
-
-		rm.deselect();
-		IJ.run("Clear Results", "");
-		rm.runCommand(nucl, "Measure"); //NB calculate from nucl
-		rt = ResultsTable.getResultsTable();
-		double[] nucl_mean_out = rt.getColumn("Mean");
-		double[] nucl_std_out = rt.getColumn("StdDev");
+	/**
+	 * Classification stage: random forest on the features, yfp intensities of the cells in metaphase
+	 * and classification with the thresholds of the user.
+	 *
+	 * @param ctx The entry in flight
+	 * @return true if the cells were classified, false if the classifier failed
+	 */
+	boolean classify(FovContext ctx){
+		WellEntry entry = ctx.entry;
+		FovFeatures features = ctx.features;
+		Roi[] rois = ctx.rois;
+		int nROI = rois.length;
 
 		/////////////////////////////////////////////////////////////
-		// Extract measurement yfp OUT
+		// remove unwanted ROIs with random forest --> only the one that represent ROI in Metaphase
 
-		rm.deselect();
-		IJ.run("Clear Results", "");
-		rm.runCommand(yfp, "Measure"); //NB calculate from nucl
-		rt = ResultsTable.getResultsTable();
-		double[] yfp_mean_out = rt.getColumn("Mean");
-		double[] yfp_std_out = rt.getColumn("StdDev");
+		int nPredictions;
+		try {
+			nPredictions = classifier.classify(features, entry.name);
+		} catch (Watchdog.StageFailedException e) {
+			System.err.println(e.getMessage() + ": " + e.getCause());
+			entry.features = null; // nothing to evaluate in the sweep
+			entry.comment = WellEntry.EntryComments.FAILED;
+			return false;
+		}
 
-		/////////////////////////////////////////////////////////////
-		// columns for classification
+		if (nPredictions != nROI) {
+			System.out.println("problem, nROI is not equal to the result of the random forest");
+			System.out.println("WE HAVE PROBLEMS PRED_META" + nPredictions + " nRoi: " + nROI);
 
-		double[] idx = new double[nROI];
-		for(int j = 0; j < nROI; j++){
-			idx[j] = (double) j+1; //Attention the numbers shown by the ROI manager starts from 1
+			features.classified = false;
+			entry.comment = WellEntry.EntryComments.EMPTY;
+			return false;
 		}
-		double[] label = new double[nROI];
-		for(int j = 0; j < nROI; j++){
-			label[j] = (double) 0;
+
+		/////////////////////////////////////////////////////////////
+		// Extract measurement yfp IN and OUT, only for the cells in metaphase
+
+		ImageProcessor yfpIp = ctx.yfp.getProcessor();
+		double band_pixels = BandStats.bandPixels(SIZE_BAND, ctx.yfp.getCalibration());
+		features.yfp_mean_in = features.column();
+		features.yfp_mean_out = features.column();
+		Arrays.fill(features.yfp_mean_in, 0, nROI, Double.NaN);
+		Arrays.fill(features.yfp_mean_out, 0, nROI, Double.NaN);
+		for (int j = 0; j < nROI; j++) {
+			if (features.metaphase[j] == 0) continue;
+			features.yfp_mean_in[j] = BandStats.inside(yfpIp, rois[j])[0];
+			features.yfp_mean_out[j] = BandStats.band(yfpIp, rois[j], band_pixels)[0];
 		}
 
 		/////////////////////////////////////////////////////////////
-		// create csv file with all the features of each csv
+		// Classification, with the thresholds of the user
 
-		double[][] arrays = {idx, label, majors, minors, area, perimeter, circularity, AR, roundness, solidity, nucl_std_in, nucl_std_out, nucl_mean_in, nucl_mean_out};
-		String[] arrayNames = {"idx", "label", "majors", "minors", "area", "perimeter", "circularity", "AR", "roundness", "solidity", "nucl_std_in", "nucl_std_out", "nucl_mean_in", "nucl_mean_out"};
+		ctx.types = features.evaluate(params, entry);
 
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter(csv_path))) {
-			for (int i = 0; i < arrays.length; i++) {
-				writer.write(arrayNames[i]);
-				for (int j = 0; j < arrays[i].length; j++) {
-					writer.write("," + arrays[i][j]);
-				}
-				writer.newLine();
+		// Keep the Rois classified in metaphase and (in sweep mode) accepted by the thresholds of the user
+		List<Roi> metaphase = new ArrayList<>();
+		for (int j=0; j<nROI; j++) {
+			if(features.metaphase[j] != 0 && FovFeatures.passesFilter(features.area[j], features.circularity[j], params)){
+				metaphase.add(rois[j]);
 			}
+		}
+		ctx.finalRois = metaphase.toArray(new Roi[0]);
+		return true;
+	}
 
-			System.out.println("CSV file written successfully.");
-		} catch (IOException e) {
-			System.err.println("Error writing CSV file: " + e.getMessage());
+	/**
+	 * This method runs Stardist on an image, with a deadline and retries, with the suppression chosen by the user.
+	 *
+	 * @param image      The preprocessed nucleus image
+	 * @param normalized true if the image is already normalized by percentiles, Stardist normalizes it otherwise
+	 * @param stage      Name of the stage, used in the logs
+	 * @return The ROIs found by Stardist
+	 * @throws Watchdog.StageFailedException if Stardist failed or timed out on every attempt
+	 */
+	Roi[] segment(ImagePlus image, boolean normalized, String stage) throws Watchdog.StageFailedException {
+		if (imageJ == null)
+			imageJ = new ImageJ();
+
+		Dataset dataset = imageJ.convert().convert(new ImgPlus(ImageJFunctions.wrap(image)), Dataset.class);
+
+		if (GridNms.MODE_GRID.equals(params.nms_mode) && !gridMapsMissing) {
+			Roi[] rois = segmentWithGridNms(dataset, normalized, stage);
+			if (rois != null) {
+				if (params.nms_check_every > 0 && nmsCheckCounter.getAndIncrement() % params.nms_check_every == 0)
+					compareNms(rois, segmentPairwise(dataset, normalized, stage + " (NMS check)"), stage);
+				return rois;
+			}
+			if (!gridMapsMissing)
+				System.err.println("Stardist did not give its probability and distance maps as outputs, the suppression of Stardist is used.");
+			gridMapsMissing = true;
 		}
 
-		/////////////////////////////////////////////////////////////
-		// remove unwanted ROIs with random forest --> only the one that represent ROI in Metaphase
+		return segmentPairwise(dataset, normalized, stage);
+	}
 
-		String classify_metaphse_script_path = Paths.get(params.pythonEnvDir, "classify_metaphase/classify_metaphase_random_forest.py").toString();
-		String rf_path = Paths.get(params.pythonEnvDir, "classify_metaphase/rf_model.joblib").toString(); //path to the random forest file
-		String python_exe_path = "";
+	/**
+	 * This method runs Stardist with its own pairwise suppression, with a deadline and retries.
+	 * The ROIs found are left in the ROI Manager.
+	 *
+	 * @param dataset    The preprocessed nucleus image
+	 * @param normalized true if the image is already normalized by percentiles
+	 * @param stage      Name of the stage, used in the logs
+	 * @return The ROIs found by Stardist
+	 * @throws Watchdog.StageFailedException if Stardist failed or timed out on every attempt
+	 */
+	Roi[] segmentPairwise(Dataset dataset, boolean normalized, String stage) throws Watchdog.StageFailedException {
+		// Stardist gives its ROIs in the global ROI Manager, so the segmentations of concurrent stages take turns
+		synchronized (ROI_MANAGER_LOCK) {
+			return Watchdog.call(stage, () -> {
+				// a run that timed out is not stopped by cancelling it, TensorFlow goes on and its ROIs
+				// would be added after the reset of this attempt, so the attempt waits for it (within its own deadline)
+				awaitStardistRuns(stardistRuns);
+				RoiManager.getRoiManager().reset(); // remove the ROIs of a previous attempt
+				List<Object> inputs = ModelRegistry.modelInputs(params);
+				inputs.addAll(Arrays.asList("input", dataset, "normalizeInput", !normalized, "percentileBottom", 1.0, "percentileTop", 100.0, "probThresh", params.probability_SD, "nmsThresh", params.overlap_SD, "outputType", "ROI Manager", "nTiles", 1, "excludeBoundary", 0, "roiPosition", "Automatic", "verbose", false, "showCsbdeepProgress", true, "showProbAndDist", false)); //, process=[false]")
+				Future<CommandModule> stardist = imageJ.command().run(StarDist2D.class, false, inputs.toArray());
+				stardistRuns.add(stardist); // not cancelled if the watchdog gives up, so that its end can be awaited
+				stardist.get();
+				return RoiManager.getRoiManager().getRoisAsArray();
+			}, params.stardist_timeout_s, params.stage_max_retries);
+		}
+	}
 
-		//depending on the OS the location of the .exe python has to be adapted
-		String os = System.getProperty("os.name");
-		if(os.charAt(0) == 'W'){
-			python_exe_path = Paths.get(params.pythonEnvDir, "python").toString();
+	/**
+	 * This method waits until the tracked Stardist runs are all finished, including the ones whose attempt timed out.
+	 *
+	 * @param tracked The runs writing to the ROI Manager
+	 * @throws InterruptedException if the attempt is cancelled while waiting
+	 */
+	static void awaitStardistRuns(List<Future<CommandModule>> tracked) throws InterruptedException {
+		List<Future<CommandModule>> runs;
+		synchronized (tracked) {
+			runs = new ArrayList<>(tracked);
 		}
-		else{
-			python_exe_path = Paths.get(params.pythonEnvDir, "bin/python3.9").toString();
+		for (Future<CommandModule> run : runs) {
+			try {
+				run.get();
+			} catch (ExecutionException | CancellationException e) {
+				// the run is over, its error was reported by its own attempt
+			}
+			tracked.remove(run);
 		}
+	}
 
-		String command = python_exe_path + " " + classify_metaphse_script_path + " " + csv_path + " " + rf_path;
-		//String[] command = {"python", classify_metaphase_script_path, csv_path};
-
-		ArrayList<Integer> pred_metaphase = new ArrayList<>();
+	/**
+	 * This method runs the Stardist network only and suppresses the candidates with the grid index of GridNms.
+	 * Stardist is asked for its probability and distance maps, with a probability threshold of 1
+	 * so that its own pairwise suppression has no candidate to compare.
+	 * The ROI Manager is not used, so several segmentations can run at the same time.
+	 * The maps are taken from the outputs of the command of this run only, they are passed to GridNms.
+	 *
+	 * @param dataset    The preprocessed nucleus image
+	 * @param normalized true if the image is already normalized by percentiles
+	 * @param stage      Name of the stage, used in the logs
+	 * @return The ROIs kept, or null if Stardist did not give its maps
+	 * @throws Watchdog.StageFailedException if Stardist or the suppression failed or timed out on every attempt
+	 */
+	Roi[] segmentWithGridNms(Dataset dataset, boolean normalized, String stage) throws Watchdog.StageFailedException {
+		int width = (int) dataset.dimension(0);
+		return Watchdog.call(stage, () -> gridNmsAttempt(dataset, normalized, width, stage),
+				params.stardist_timeout_s, params.stage_max_retries);
+	}
 
+	/**
+	 * This method is one attempt of segmentWithGridNms.
+	 *
+	 * @param dataset    The preprocessed nucleus image
+	 * @param normalized true if the image is already normalized by percentiles
+	 * @param width      Width of the image
+	 * @param stage      Name of the stage, used in the logs
+	 * @return The ROIs kept, or null if Stardist did not give its maps
+	 */
+	Roi[] gridNmsAttempt(Dataset dataset, boolean normalized, int width, String stage) throws Exception {
+		List<Object> inputs = ModelRegistry.modelInputs(params);
+		inputs.addAll(Arrays.asList("input", dataset, "normalizeInput", !normalized, "percentileBottom", 1.0, "percentileTop", 100.0, "probThresh", 1.0, "nmsThresh", params.overlap_SD, "outputType", "Label Image", "nTiles", 1, "excludeBoundary", 0, "roiPosition", "Automatic", "verbose", false, "showCsbdeepProgress", true, "showProbAndDist", true));
+		Future<CommandModule> stardist = imageJ.command().run(StarDist2D.class, false, inputs.toArray());
+		CommandModule module;
 		try {
-			Process p = Runtime.getRuntime().exec(command); //run the command
-
-			// Option 1: Read output directly using InputStreamReader
-			InputStreamReader reader = new InputStreamReader(p.getInputStream());
-			BufferedReader buffer = new BufferedReader(reader);
-			String line;
-			while ((line = buffer.readLine()) != null) {
-				pred_metaphase.add(Integer.parseInt(line));
-				//IJ.log(line);
-			}
-			buffer.close();
-			reader.close();
+			module = stardist.get();
+		} catch (InterruptedException e) {
+			stardist.cancel(true); // the watchdog gave up on this attempt
+			throw e;
+		}
 
-			// Capture error output
-			BufferedReader stdError = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-			String error;
-			while ((error = stdError.readLine()) != null) {
-				System.out.println("Python Error: " + error);
-			}
-			// Wait for process to complete
-			int exitCode = p.waitFor();
-			if (exitCode == 0) {
-				System.out.println("Python script executed successfully.");
-			} else {
-				System.out.println("Error executing Python script. Exit code: " + exitCode);
+		GridNms nms;
+		try {
+			Dataset prob = findStardistMap(module, "prob");
+			Dataset dist = findStardistMap(module, "dist");
+			if (prob == null || dist == null)
+				return null;
+			nms = GridNms.fromStardist(prob, dist, width, params.probability_SD);
+			closeStardistMap(prob);
+			closeStardistMap(dist);
+		} finally {
+			// the label image asked for is empty (probability threshold of 1), it is dropped with the maps
+			for (Object output : module.getOutputs().values()) {
+				if (output instanceof Dataset)
+					closeStardistMap((Dataset) output);
 			}
-
-		} catch (IOException | InterruptedException e) {
-			e.printStackTrace();
 		}
 
-		if (pred_metaphase.size() != nROI) {
-			System.out.println("problem, nROI is not equal to the result of the random forest");
-			System.out.println("WE HAVE PROBLEMS PRED_META" + pred_metaphase.size() + " nRoi: " + nROI);
-
-			entry.comment = WellEntry.EntryComments.EMPTY;
-			IJ.run("Close All", "");
-			return result;
+		int[] winners = nms.suppress(params.overlap_SD, params.nms_threads);
+		Roi[] rois = new Roi[winners.length];
+		for (int i = 0; i < winners.length; i++) {
+			rois[i] = nms.roi(winners[i]);
 		}
+		System.out.println(stage + ": " + nms.size() + " candidates, " + winners.length + " kept by the grid NMS.");
+		return rois;
+	}
 
-		for (int j=nROI-1; j>=0; j--) {
-
-			rm.select(j); // select a specific roi
-
-			if(pred_metaphase.get(j) == 0){ // Remove Rois classified as not in metaphase
-				rm.runCommand("Delete");
-				continue;
-			}
+	/**
+	 * This method finds a map shown by Stardist in the outputs of its command.
+	 * The datasets of the context are not searched, they may come from the runs of other FoVs or analyses.
+	 *
+	 * @param module  The finished Stardist command
+	 * @param keyword Part of the name of the map, e.g. "prob" or "dist"
+	 * @return The map, or null if it is not an output
+	 */
+	static Dataset findStardistMap(CommandModule module, String keyword) {
+		for (Object output : module.getOutputs().values()) {
+			if (output instanceof Dataset && isNamed((Dataset) output, keyword))
+				return (Dataset) output;
 		}
+		return null;
+	}
 
-		/////////////////////////////////////////////////////////////
-
-		nROI = rm.getCount();
+	/**
+	 * This method checks if the name of a dataset contains a keyword, ignoring the case.
+	 */
+	static boolean isNamed(Dataset dataset, String keyword) {
+		return dataset.getName() != null && dataset.getName().toLowerCase().contains(keyword);
+	}
 
-		//if no ROI exit
-		if (nROI == 0){
-			entry.comment = WellEntry.EntryComments.NO_MITOSIS;
-			IJ.run("Close All", "");
-			return result;
+	/**
+	 * This method closes the displays of a map or an output of Stardist, so that the images of the FoVs do not pile up.
+	 *
+	 * @param map The map
+	 */
+	void closeStardistMap(Dataset map) {
+		for (Display<?> display : new ArrayList<>(imageJ.display().getDisplays())) {
+			if (display.isDisplaying(map))
+				display.close();
 		}
+		imageJ.object().removeObject(map);
+	}
 
-		IJ.run(nucl, "From ROI Manager", "Show All with Labels");
-		rm.save(results_path + "/RoiSet_final_" +  image_name + ".zip"); //Save final ROis after RF
-
-		entry.total_nuclei_metaphase = nROI; // final number of nuclei in metaphase!
-
-		rm.close();
-
-		/////////////////////////////////////////////////////////////
-		// Classification
-
-		int[] types = new int[nROI]; //label array
-
-		//double std_thr = 500;
-		double margin = params.margin;
-
-		for (int j=0; j<nROI; j++) {
-
-			double out_in = (yfp_mean_out[j] - yfp_mean_in[j]) ; /// (yfp_out[j] + yfp_in[j]);
-
-			double distance = Math.abs(yfp_mean_in[j] - yfp_mean_out[j] ) / Math.sqrt(2);
-
-			if( distance < margin){ //intermediate
-				types[j] = 1;
-				entry.totalInter++;
-			} else if((distance > margin)  && (out_in > 0)){ //out>in && out!=in enogth (their differnce is big enogth) --> we are in the depleted case
-				types[j] = 2;
-				entry.totalDepleted++;
-			} else if((distance > margin)  && (out_in < 0)){
-				types[j] = 0;
-				entry.totalEnriched++;
+	/**
+	 * This method compares the ROIs kept by the grid NMS with the ones kept by the pairwise suppression of Stardist
+	 * on the same FoV, and logs the ROIs kept by only one of them. Two ROIs are the same candidate
+	 * if their centroids are less than a pixel apart.
+	 *
+	 * @param grid     The ROIs kept by the grid NMS
+	 * @param pairwise The ROIs kept by Stardist
+	 * @param stage    Name of the stage, used in the logs
+	 * @return true if both kept the same ROIs
+	 */
+	static boolean compareNms(Roi[] grid, Roi[] pairwise, String stage) {
+		double[][] centroids = new double[pairwise.length][];
+		for (int i = 0; i < pairwise.length; i++)
+			centroids[i] = pairwise[i].getContourCentroid();
+		boolean[] matched = new boolean[pairwise.length];
+		int onlyGrid = 0;
+		for (Roi roi : grid) {
+			double[] c = roi.getContourCentroid();
+			int found = -1;
+			for (int i = 0; i < pairwise.length && found < 0; i++) {
+				if (!matched[i] && Math.hypot(c[0] - centroids[i][0], c[1] - centroids[i][1]) < 1)
+					found = i;
 			}
-
-			//IJ.log("index:" + (j+1) + " ,type: " + types[j] + "out_in: " +  out_in + "   dist: " + distance);
-
+			if (found >= 0)
+				matched[found] = true;
+			else
+				onlyGrid++;
 		}
+		int onlyPairwise = 0;
+		for (boolean m : matched)
+			if (!m) onlyPairwise++;
+		boolean same = onlyGrid == 0 && onlyPairwise == 0;
+		System.out.println(stage + ": NMS check, " + grid.length + " ROIs kept by the grid NMS, " + pairwise.length + " by Stardist, "
+				+ (same ? "same ROIs" : onlyGrid + " only kept by the grid NMS, " + onlyPairwise + " only by Stardist"));
+		return same;
+	}
 
-		entry.enriched_to_nuclei = entry.totalEnriched / entry.total_nuclei;
-		entry.depleted_to_nuclei = entry.totalDepleted / entry.total_nuclei;
-		entry.intermediate_to_nuclei = entry.totalInter / entry.total_nuclei;
-
-		Color[] colors = {Color.RED, Color.GREEN, Color.BLUE};
-
-		Plot plot = new Plot("", "yfp_in" , "yfp_out");
-
-		for (int j = 0; j < nROI; j++) {
-			int colorIndex = types[j]; // Example color assignment based on third variable
-			plot.setColor(colors[colorIndex]);
-			plot.addPoints(new double[]{yfp_mean_in[j]}, new double[]{yfp_mean_out[j]}, Plot.CIRCLE);
+	/**
+	 * This method runs Stardist on a downsampled copy of an image and maps the ROIs back to the full resolution.
+	 * The inference cost drops with the square of the scale factor, the intensities are still measured at full resolution.
+	 *
+	 * @param image      The preprocessed nucleus image
+	 * @param normalized true if the image is already normalized by percentiles
+	 * @param scale      Downscale factor, larger than 1
+	 * @param name       Name of the entry, used in the logs
+	 * @return The ROIs found by Stardist, in full resolution coordinates
+	 * @throws Watchdog.StageFailedException if Stardist failed or timed out on every attempt
+	 */
+	Roi[] segmentDownscaled(ImagePlus image, boolean normalized, double scale, String name) throws Watchdog.StageFailedException {
+		ImageProcessor ip = image.getProcessor();
+		ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+		int smallWidth = Math.max(1, (int) Math.round(ip.getWidth() / scale));
+		int smallHeight = Math.max(1, (int) Math.round(ip.getHeight() / scale));
+		ImagePlus small = new ImagePlus(image.getTitle() + "_small", ip.resize(smallWidth, smallHeight, true));
+
+		Roi[] rois = segment(small, normalized, "Stardist x1/" + scale + " " + name);
+
+		double sx = (double) ip.getWidth() / smallWidth;
+		double sy = (double) ip.getHeight() / smallHeight;
+		Roi[] scaled = new Roi[rois.length];
+		for (int i = 0; i < rois.length; i++) {
+			scaled[i] = RoiScaler.scale(rois[i], sx, sy, false);
+			scaled[i].setName(rois[i].getName());
 		}
+		return scaled;
+	}
 
-		// Add line y = x
-		double minX = Arrays.stream(yfp_mean_in).min().orElse(0);
-		double maxX = Arrays.stream(yfp_mean_in).max().orElse(10);
-		plot.setColor(Color.BLACK); // Line color
-		plot.addPoints(new double[]{minX, maxX}, new double[]{minX, maxX}, Plot.LINE);
-
-		//change the frame limits
-		plot.setAxisXLog(false);
-		plot.setAxisYLog(false);
-		double delta = 100;
-		plot.setLimits(Arrays.stream(yfp_mean_in).min().getAsDouble() - delta,Arrays.stream(yfp_mean_in).max().getAsDouble() + delta,Arrays.stream(yfp_mean_out).min().getAsDouble() - delta,Arrays.stream(yfp_mean_out).max().getAsDouble() - delta);
-		plot.update();
-		plot.show();
-
-		//printFullDataMetrics();
-
-
-		//////////////////////////////////////////////////////////
-		//Close all images
-
-		IJ.run("Close All", "");
-		return result;
+	/**
+	 * This method ends the analysis of a WellEntry: it archives the final ROIs, hands the QC images over
+	 * to the background renderer and closes the images.
+	 *
+	 * @param ctx The analyzed entry
+	 * @return true, the analysis of the entry is finished
+	 */
+	boolean finishEntry(FovContext ctx){
+		if (ctx.finalRois != null && ctx.finalRois.length > 0)
+			roiArchive.add(ctx.entry.wellName, ctx.entry.name, RoiArchive.STAGE_FINAL, ctx.finalRois); //Save final ROis after RF
+		if (qc != null)
+			qc.submit(ctx.entry, ctx.nucl, ctx.yfp, ctx.features, ctx.types);
+		if (params.pipeline_staged)
+			ctx.flush(); // the other entries in flight still have their images
+		else
+			IJ.run("Close All", "");
+		return true;
 	}
 
 	/**
@@ -709,21 +1082,13 @@ public class ProjectCommand implements Command {
 	{
 		try (PrintWriter writer = new PrintWriter(new FileWriter(params.resultsDir+"output.csv"))) {
 			// Write the header line
-			writer.println("Well Name,FoV,Enriched to Nuclei Ratio,Total Enriched,Depleted to Nuclei Ratio,Total Depleted,Intermediate to Nuclei Ratio,Total Intermediate,Total Nuclei,Total Nuclei Metaphase,Comment");
+			writer.println(WellEntry.CSV_HEADER);
 			// Iterate over each entry in the map
 			for (Map.Entry<Character, List<Well>> entry : wellsByInitial.entrySet()) {
 				for (Well well : entry.getValue()) {
 					// Assume each well has a list of data entries
 					for (WellEntry data : well.wellEntries.values()) {
-						String line = String.format("%s,%d,%f,%d,%f,%d,%f,%d,%f,%f,%s",
-								well.name,
-								data.fov, data.enriched_to_nuclei, data.totalEnriched,
-								data.depleted_to_nuclei, data.totalDepleted,
-								data.intermediate_to_nuclei, data.totalInter,
-								data.total_nuclei, data.total_nuclei_metaphase,
-								data.getComment()
-								);
-						writer.println(line);
+						writer.println(data.toCsvLine(well.name));
 					}
 				}
 			}
@@ -732,6 +1097,24 @@ public class ProjectCommand implements Command {
 		}
 	}
 
+	/**
+	 * This method writes the running aggregates of each Well, in alphabetical order, and of the whole plate.
+	 */
+	void printWellSummary()
+	{
+		try (PrintWriter writer = new PrintWriter(new FileWriter(params.resultsDir+"well_summary.csv"))) {
+			writer.println(WellAggregate.CSV_HEADER);
+			for (Map.Entry<Character, List<Well>> entry : wellsByInitial.entrySet()) {
+				for (Well well : entry.getValue()) {
+					writer.println(well.aggregate.toCsvLine(well.name));
+				}
+			}
+			writer.println(results.plate.toCsvLine("Plate"));
+		} catch (IOException e) {
+			System.err.println("Error writing to CSV file: " + e.getMessage());
+		}
+	}
+
 	/**
 	 * Method to delete a folder and its contents.
 	 *
@@ -0,0 +1,227 @@
+package ch.epfl.bio410;
+
+import ij.ImagePlus;
+import ij.gui.Plot;
+import ij.io.FileSaver;
+import ij.plugin.ContrastEnhancer;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Color;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class renders the quality control images of the WellEntries in the background:
+ * the red/yellow composite of the two channels and the scatter plot of yfp_in vs yfp_out.
+ * The images are written as PNG files in the "qc" folder of the results and never block the analysis:
+ * the renderings wait in a bounded queue, and a sample is dropped when the queue is full.
+ */
+public class QcRenderer {
+
+    // No QC image is produced
+    static final String MODE_NONE = "None";
+
+    // QC images for every Nth FoV
+    static final String MODE_EVERY_NTH = "Every Nth FoV";
+
+    // QC images for the FoVs with a comment other than Normal
+    static final String MODE_FLAGGED = "Flagged FoVs";
+
+    // QC images for all the FoVs
+    static final String MODE_ALL = "All FoVs";
+
+    // Choices shown in the GUI
+    static final String[] MODES = {MODE_NONE, MODE_EVERY_NTH, MODE_FLAGGED, MODE_ALL};
+
+    // Colors of the enriched, intermediate and depleted cells
+    static final Color[] COLORS = {Color.RED, Color.GREEN, Color.BLUE};
+
+    // User parameters
+    final Parameters params;
+
+    // Folder where the PNG files are written
+    final File folder;
+
+    // Number of FoVs seen, used for the Every Nth sampling
+    final AtomicInteger seen = new AtomicInteger();
+
+    // Background rendering threads
+    final ThreadPoolExecutor pool;
+
+    // Samples dropped because the queue was full
+    final AtomicInteger dropped = new AtomicInteger();
+
+    /**
+     * Constructor for QcRenderer.
+     *
+     * @param params User parameters with the QC mode, the sampling and the results directory
+     */
+    public QcRenderer(Parameters params) {
+        this.params = params;
+        this.folder = new File(params.resultsDir, "qc");
+        int threads = Math.max(1, params.qc_threads);
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, params.qc_queue_capacity)), r -> {
+            Thread t = new Thread(r, "QC renderer");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Decides if QC images are produced for a finished WellEntry.
+     *
+     * @param entry The finished WellEntry
+     * @return true if the entry is sampled
+     */
+    boolean isSampled(WellEntry entry) {
+        int index = seen.getAndIncrement();
+        switch (params.qc_mode) {
+            case MODE_ALL:
+                return true;
+            case MODE_EVERY_NTH:
+                return index % Math.max(1, params.qc_every_n) == 0;
+            case MODE_FLAGGED:
+                return entry.comment != WellEntry.EntryComments.NORMAL;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Submits the QC images of a finished WellEntry, if it is sampled.
+     * The pixels are copied before returning, so the images can be closed right away.
+     *
+     * @param entry    The finished WellEntry
+     * @param nucl     The red (nucleus) channel
+     * @param yfp      The yellow (YFP) channel
+     * @param features The measured features, or null if the analysis stopped before
+     * @param types    The type of each cell (-1 if not counted), or null
+     */
+    public void submit(WellEntry entry, ImagePlus nucl, ImagePlus yfp, FovFeatures features, int[] types) {
+        if (MODE_NONE.equals(params.qc_mode) || nucl == null || yfp == null) return;
+        if (!isSampled(entry)) return;
+        if (pool.getQueue().remainingCapacity() == 0) { // checked before copying the pixels, the renderers are behind
+            drop(entry);
+            return;
+        }
+        if (!folder.exists() && !folder.mkdirs()) {
+            System.err.println("Unable to create the QC folder.");
+            return;
+        }
+
+        final ImageProcessor nuclCopy = nucl.getProcessor().duplicate();
+        final ImageProcessor yfpCopy = yfp.getProcessor().duplicate();
+        final String name = entry.name;
+        // the feature columns may be lent by a BufferPool and reused after this call, so they are copied too
+        final int[] cellTypes = features == null || types == null ? null : types.clone();
+        final double[] in = cellTypes == null ? null : Arrays.copyOf(features.yfp_mean_in, cellTypes.length);
+        final double[] out = cellTypes == null ? null : Arrays.copyOf(features.yfp_mean_out, cellTypes.length);
+
+        try {
+            pool.execute(() -> {
+                try {
+                    saveComposite(nuclCopy, yfpCopy, new File(folder, name + "_composite.png"));
+                    if (cellTypes != null) {
+                        saveScatter(in, out, cellTypes, new File(folder, name + "_scatter.png"));
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Error rendering QC images of " + name + ": " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) { // filled up by another thread since the check
+            drop(entry);
+        }
+    }
+
+    /**
+     * Logs a sample dropped because the rendering threads are behind.
+     */
+    void drop(WellEntry entry) {
+        int n = dropped.incrementAndGet();
+        System.out.println("QC queue full, no QC images for " + entry.name + " (" + n + " dropped so far)");
+    }
+
+    /**
+     * Writes the composite of the two channels (nucl in red, yfp in yellow) with a 0.35% saturated contrast.
+     */
+    static void saveComposite(ImageProcessor nucl, ImageProcessor yfp, File file) {
+        stretch(nucl);
+        stretch(yfp);
+        ImageProcessor red = nucl.convertToByte(true);
+        ImageProcessor yellow = yfp.convertToByte(true);
+
+        int width = nucl.getWidth(), height = nucl.getHeight();
+        ColorProcessor rgb = new ColorProcessor(width, height);
+        for (int i = 0; i < width * height; i++) {
+            int y = yellow.get(i);
+            int r = Math.min(255, red.get(i) + y);
+            rgb.set(i, (r << 16) | (y << 8));
+        }
+        new FileSaver(new ImagePlus("Composite", rgb)).saveAsPng(file.getPath());
+    }
+
+    /**
+     * Sets the display range of a copied channel with a 0.35% saturated contrast, from its histogram.
+     */
+    static void stretch(ImageProcessor ip) {
+        ChannelHistogram histogram = ChannelHistogram.of(ip, null); // the pools are only recycled by the workers
+        if (histogram == null) {
+            new ContrastEnhancer().stretchHistogram(ip, 0.35);
+            return;
+        }
+        int[] limits = histogram.saturatedLimits(0.35);
+        ip.setMinAndMax(limits[0], limits[1]);
+    }
+
+    /**
+     * Writes the scatter plot of yfp_in vs yfp_out of the counted cells, colored by type, with the line y = x.
+     */
+    static void saveScatter(double[] in, double[] out, int[] types, File file) {
+        Plot plot = new Plot("", "yfp_in", "yfp_out");
+        double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int j = 0; j < types.length; j++) {
+            if (types[j] < 0) continue; // cell not counted
+            plot.setColor(COLORS[types[j]]);
+            plot.addPoints(new double[]{in[j]}, new double[]{out[j]}, Plot.CIRCLE);
+            minX = Math.min(minX, in[j]);
+            maxX = Math.max(maxX, in[j]);
+            minY = Math.min(minY, out[j]);
+            maxY = Math.max(maxY, out[j]);
+        }
+        if (minX > maxX) return; // no cell to show
+
+        // Add line y = x
+        plot.setColor(Color.BLACK);
+        plot.addPoints(new double[]{minX, maxX}, new double[]{minX, maxX}, Plot.LINE);
+
+        double delta = 100;
+        plot.setLimits(minX - delta, maxX + delta, minY - delta, maxY + delta);
+        new FileSaver(plot.getImagePlus()).saveAsPng(file.getPath());
+    }
+
+    /**
+     * Waits for the pending QC images to be written and stops the rendering threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(10, TimeUnit.MINUTES)) {
+                System.err.println("QC rendering did not finish in time.");
+            }
+            if (dropped.get() > 0) {
+                System.out.println(dropped.get() + " QC samples dropped, the queue was full (qc_queue_capacity = " + params.qc_queue_capacity + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ch.epfl.bio410;
+
+/**
+ * This class estimates the quantiles of a stream of positive values with a bounded relative error.
+ * Values are counted in logarithmic buckets (as in DDSketch), so that two sketches are merged
+ * exactly by adding their bucket counts, whatever the order in which the values arrived.
+ */
+public class QuantileSketch {
+
+    // Relative accuracy of the quantiles
+    static final double RELATIVE_ACCURACY = 0.01;
+
+    // Ratio between the bounds of a bucket
+    static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+
+    // Values below this one are counted in the zero bucket
+    static final double MIN_VALUE = 1e-6;
+
+    // Natural logarithm of GAMMA
+    static final double LOG_GAMMA = Math.log(GAMMA);
+
+    // Counts of the buckets, counts[i] is the bucket of index offset + i
+    long[] counts = new long[0];
+
+    // Index of the first bucket stored
+    int offset = 0;
+
+    // Number of values in the zero bucket
+    long zeroCount = 0;
+
+    // Total number of values
+    long count = 0;
+
+    /**
+     * Adds one value.
+     *
+     * @param x The value, NaN values are ignored
+     */
+    public void add(double x) {
+        if (Double.isNaN(x)) return;
+        count++;
+        if (x < MIN_VALUE) {
+            zeroCount++;
+            return;
+        }
+        int index = (int) Math.ceil(Math.log(x) / LOG_GAMMA);
+        ensureCapacity(index, index);
+        counts[index - offset]++;
+    }
+
+    /**
+     * Adds all the values of another sketch.
+     *
+     * @param other The sketch to merge into this one
+     */
+    public void merge(QuantileSketch other) {
+        count += other.count;
+        zeroCount += other.zeroCount;
+        if (other.counts.length == 0) return;
+        ensureCapacity(other.offset, other.offset + other.counts.length - 1);
+        for (int i = 0; i < other.counts.length; i++) {
+            counts[other.offset + i - offset] += other.counts[i];
+        }
+    }
+
+    /**
+     * Grows the bucket array so that it covers the indexes from min to max.
+     */
+    void ensureCapacity(int min, int max) {
+        if (counts.length == 0) {
+            counts = new long[max - min + 1];
+            offset = min;
+            return;
+        }
+        int newMin = Math.min(min, offset);
+        int newMax = Math.max(max, offset + counts.length - 1);
+        if (newMin == offset && newMax == offset + counts.length - 1) return;
+        long[] grown = new long[newMax - newMin + 1];
+        System.arraycopy(counts, 0, grown, offset - newMin, counts.length);
+        counts = grown;
+        offset = newMin;
+    }
+
+    /**
+     * Estimates a quantile of the values.
+     *
+     * @param q The quantile, between 0 and 1
+     * @return The estimated value, NaN if the sketch is empty
+     */
+    public double getQuantile(double q) {
+        if (count == 0) return Double.NaN;
+        long rank = (long) Math.floor(q * (count - 1));
+        if (rank < zeroCount) return 0;
+        long seen = zeroCount;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > rank) {
+                return 2 * Math.pow(GAMMA, offset + i) / (GAMMA + 1);
+            }
+        }
+        return 2 * Math.pow(GAMMA, offset + counts.length - 1) / (GAMMA + 1);
+    }
+}
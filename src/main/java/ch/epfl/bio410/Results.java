@@ -9,4 +9,19 @@ public class Results {
 
     // List to store Well objects
     ArrayList<Well> wells = new ArrayList<>();
+
+    // Running aggregate of all the finished entries of the plate
+    WellAggregate plate = new WellAggregate();
+
+    /**
+     * Records a finished WellEntry in its Well and in the plate aggregate.
+     * The entries may be finished by several threads of the staged pipeline.
+     *
+     * @param well  The Well containing the entry
+     * @param entry The finished WellEntry
+     */
+    synchronized void addResult(Well well, WellEntry entry) {
+        well.addResult(entry);
+        plate.add(entry);
+    }
 }
@@ -0,0 +1,413 @@
+package ch.epfl.bio410;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.io.RoiEncoder;
+import ij.process.FloatPolygon;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * This class stores the ROIs of all the FoVs of a well in one append-only archive (rois/<well>.roia in the results),
+ * written by a background thread so that saving the ROIs never blocks the analysis.
+ * The polygons are encoded compactly: vertices in 1/256 pixel, as zigzag varint deltas from the previous vertex.
+ * The exporter writes the archived ROIs as the RoiSet_<stage>_<entry>.zip files of the ROI Manager.
+ * Each snapshot is flushed once written, so a crash loses at most the record being written,
+ * and a truncated last record is cut before the archive is appended to again.
+ */
+public class RoiArchive {
+
+    // ROIs found by Stardist
+    static final int STAGE_STARDIST = 0;
+
+    // ROIs kept by the initial filtering
+    static final int STAGE_PREFILTERING = 1;
+
+    // ROIs of the cells in metaphase
+    static final int STAGE_FINAL = 2;
+
+    // Name of each stage, used in the exported zips
+    static final String[] STAGE_NAMES = {"stardist", "prefiltering", "final"};
+
+    // First bytes of an archive and version of the encoding
+    static final int MAGIC = 0x524f4941; // "ROIA"
+    static final int VERSION = 1;
+
+    // Fixed-point scale of the vertices
+    static final float SCALE = 256f;
+
+    // Extension of the archives
+    static final String EXTENSION = ".roia";
+
+    // Record marking the end of the queue
+    private static final Snapshot END = new Snapshot(null, null, 0, null, null);
+
+    // Folder of the archives
+    final File folder;
+
+    // Snapshots waiting to be written
+    final BlockingQueue<Snapshot> queue = new LinkedBlockingQueue<>();
+
+    // Open archive of each well
+    final Map<String, DataOutputStream> archives = new HashMap<>();
+
+    // Background writer thread
+    final Thread writer;
+
+    /**
+     * This class is one record read back from an archive: the ROIs of one stage of one FoV.
+     */
+    static class Record {
+        final String entry;
+        final int stage;
+        final Roi[] rois;
+
+        Record(String entry, int stage, Roi[] rois) {
+            this.entry = entry;
+            this.stage = stage;
+            this.rois = rois;
+        }
+    }
+
+    /**
+     * This class is the ROIs of one stage of one FoV, copied from the ROI Manager.
+     */
+    static class Snapshot {
+        final String well, entry;
+        final int stage;
+        final String[] names;
+        final FloatPolygon[] polygons;
+
+        Snapshot(String well, String entry, int stage, String[] names, FloatPolygon[] polygons) {
+            this.well = well;
+            this.entry = entry;
+            this.stage = stage;
+            this.names = names;
+            this.polygons = polygons;
+        }
+    }
+
+    /**
+     * Constructor for RoiArchive, starts the writer thread.
+     *
+     * @param params User parameters with the results directory
+     */
+    public RoiArchive(Parameters params) {
+        this.folder = new File(params.resultsDir, "rois");
+        this.writer = new Thread(this::writeAll, "ROI archive writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues the ROIs of one stage of a FoV. The polygons are copied before returning.
+     *
+     * @param well  Name of the well
+     * @param entry Name of the WellEntry
+     * @param stage One of STAGE_STARDIST, STAGE_PREFILTERING, STAGE_FINAL
+     * @param rois  The ROIs
+     */
+    public void add(String well, String entry, int stage, Roi[] rois) {
+        String[] names = new String[rois.length];
+        FloatPolygon[] polygons = new FloatPolygon[rois.length];
+        for (int i = 0; i < rois.length; i++) {
+            names[i] = rois[i].getName() != null ? rois[i].getName() : Integer.toString(i + 1);
+            polygons[i] = rois[i].getFloatPolygon();
+        }
+        queue.add(new Snapshot(well, entry, stage, names, polygons));
+    }
+
+    /**
+     * Waits for the queued ROIs to be written and closes the archives.
+     */
+    public void shutdown() {
+        queue.add(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Body of the writer thread: writes the snapshots until the end of the queue.
+     */
+    void writeAll() {
+        try {
+            Snapshot s;
+            while ((s = queue.take()) != END) {
+                try {
+                    DataOutputStream out = archive(s.well);
+                    write(out, s);
+                    out.flush(); // the snapshot is on disk even if the run does not reach shutdown()
+                } catch (IOException e) {
+                    System.err.println("Unable to archive the ROIs of " + s.entry + ": " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (DataOutputStream out : archives.values()) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    System.err.println("Unable to close a ROI archive: " + e.getMessage());
+                }
+            }
+            archives.clear();
+        }
+    }
+
+    /**
+     * Opens the archive of a well, in append mode. A new archive starts with its header,
+     * an existing one is first cut after its last complete record.
+     */
+    DataOutputStream archive(String well) throws IOException {
+        DataOutputStream out = archives.get(well);
+        if (out != null) return out;
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Unable to create " + folder);
+        }
+        File file = new File(folder, well + EXTENSION);
+        if (file.length() > 0) {
+            long complete = completeLength(file);
+            if (complete < file.length()) {
+                System.err.println("Truncated record at the end of " + file + ", cut at " + complete + " bytes.");
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(complete);
+                }
+            }
+        }
+        boolean created = !file.exists() || file.length() == 0;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16));
+        if (created) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+        archives.put(well, out);
+        return out;
+    }
+
+    /**
+     * Writes one snapshot: entry name, stage, number of ROIs, then the name and the vertices of each ROI.
+     */
+    static void write(DataOutputStream out, Snapshot s) throws IOException {
+        out.writeUTF(s.entry);
+        out.writeByte(s.stage);
+        out.writeInt(s.polygons.length);
+        for (int i = 0; i < s.polygons.length; i++) {
+            FloatPolygon p = s.polygons[i];
+            out.writeUTF(s.names[i]);
+            writeVarint(out, p.npoints);
+            int lastX = 0, lastY = 0;
+            for (int k = 0; k < p.npoints; k++) {
+                int x = Math.round(p.xpoints[k] * SCALE), y = Math.round(p.ypoints[k] * SCALE);
+                writeVarint(out, zigzag(x - lastX));
+                writeVarint(out, zigzag(y - lastY));
+                lastX = x;
+                lastY = y;
+            }
+        }
+    }
+
+    /**
+     * Exports the ROIs of a stage of every FoV of an archive as ImageJ ROI zips (RoiSet_<stage>_<entry>.zip).
+     *
+     * @param archive The archive of a well
+     * @param dir     Folder receiving the zips
+     * @param stage   The stage to export
+     * @return The number of zips written
+     * @throws IOException if the archive cannot be read or a zip cannot be written
+     */
+    public static int exportZips(File archive, File dir, int stage) throws IOException {
+        int written = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(archive), 1 << 16))) {
+            readHeader(in, archive);
+            while (true) {
+                Record record;
+                try {
+                    record = read(in);
+                } catch (EOFException e) {
+                    System.err.println("Truncated record at the end of " + archive + ", skipped.");
+                    break; // the run was stopped while writing it
+                }
+                if (record == null) break; // end of the archive
+                // a later record of the same FoV (e.g. a retry) replaces the zip of the previous one
+                if (record.stage == stage && record.rois.length > 0) {
+                    saveZip(record.rois, new File(dir, "RoiSet_" + STAGE_NAMES[stage] + "_" + record.entry + ".zip"));
+                    written++;
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Reads and checks the header of an archive.
+     *
+     * @throws IOException if the file is not an archive of this version
+     */
+    static void readHeader(DataInputStream in, File archive) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException(archive + " is not a ROI archive");
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("Unknown ROI archive version " + version);
+    }
+
+    /**
+     * Reads one record, as written by write().
+     *
+     * @return The record, or null at the end of the archive
+     * @throws EOFException if the archive ends after the name of the entry, inside the record
+     */
+    static Record read(DataInputStream in) throws IOException {
+        String entry;
+        try {
+            entry = in.readUTF();
+        } catch (EOFException e) {
+            return null; // end of the archive, a name cut short is dropped with it
+        }
+
+        int stage = in.readByte();
+        int n = in.readInt();
+        Roi[] rois = new Roi[n];
+        for (int i = 0; i < n; i++) {
+            String name = in.readUTF();
+            int npoints = readVarint(in);
+            float[] xs = new float[npoints], ys = new float[npoints];
+            int x = 0, y = 0;
+            for (int k = 0; k < npoints; k++) {
+                x += unzigzag(readVarint(in));
+                y += unzigzag(readVarint(in));
+                xs[k] = x / SCALE;
+                ys[k] = y / SCALE;
+            }
+            rois[i] = new PolygonRoi(xs, ys, Roi.POLYGON);
+            rois[i].setName(name);
+        }
+        return new Record(entry, stage, rois);
+    }
+
+    /**
+     * Gives the length of the complete records of an archive, with its header:
+     * the archive ends there, unless the run was stopped while writing a record.
+     *
+     * @throws IOException if the file is not a ROI archive or cannot be read
+     */
+    static long completeLength(File archive) throws IOException {
+        byte[] bytes = Files.readAllBytes(archive.toPath());
+        if (bytes.length < 8) return 0; // the header itself was not written
+        ByteArrayInputStream bytesIn = new ByteArrayInputStream(bytes);
+        DataInputStream in = new DataInputStream(bytesIn);
+        readHeader(in, archive);
+        long complete = bytes.length - bytesIn.available();
+        try {
+            while (read(in) != null) {
+                complete = bytes.length - bytesIn.available();
+            }
+        } catch (EOFException e) {
+            // the last record is truncated, the archive ends before it
+        }
+        return complete;
+    }
+
+    /**
+     * Exports a stage of all the archives of the results.
+     *
+     * @param params User parameters with the results directory
+     * @param stage  The stage to export
+     */
+    public static void exportAll(Parameters params, int stage) {
+        File[] archives = new File(params.resultsDir, "rois").listFiles((d, name) -> name.endsWith(EXTENSION));
+        if (archives == null) return;
+        for (File archive : archives) {
+            try {
+                int n = exportZips(archive, new File(params.resultsDir), stage);
+                System.out.println(n + " ROI zips exported from " + archive.getName());
+            } catch (IOException e) {
+                System.err.println("Unable to export " + archive + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes ROIs in the zip format of the ROI Manager.
+     */
+    static void saveZip(Roi[] rois, File file) throws IOException {
+        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+             DataOutputStream out = new DataOutputStream(zos)) {
+            RoiEncoder encoder = new RoiEncoder(out);
+            Set<String> used = new HashSet<>();
+            for (Roi roi : rois) {
+                String name = roi.getName();
+                for (int k = 2; !used.add(name); k++) name = roi.getName() + "-" + k; // the zip entries must be unique
+                zos.putNextEntry(new ZipEntry(name + ".roi"));
+                encoder.write(roi);
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Exports a stage of an archive from the command line: archive, output folder and stage name (final by default).
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: RoiArchive <archive.roia> <output folder> [stardist|prefiltering|final]");
+            return;
+        }
+        String stageName = args.length > 2 ? args[2] : STAGE_NAMES[STAGE_FINAL];
+        int stage = Arrays.asList(STAGE_NAMES).indexOf(stageName);
+        if (stage < 0) {
+            System.err.println("Unknown stage " + stageName);
+            return;
+        }
+        System.out.println(exportZips(new File(args[0]), new File(args[1]), stage) + " zips written.");
+    }
+
+    static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static void writeVarint(DataOutputStream out, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarint(DataInputStream in) throws IOException {
+        int v = 0, shift = 0, b;
+        do {
+            b = in.readUnsignedByte();
+            v |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+}
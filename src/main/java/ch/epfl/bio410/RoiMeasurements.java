@@ -0,0 +1,82 @@
+package ch.epfl.bio410;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.awt.Polygon;
+
+/**
+ * This class measures the shape and intensity features of the ROIs of one image, with the columns of
+ * "Measure" (area mean perimeter standard fit shape), but without the ROI Manager and the global ResultsTable.
+ * The sums come from IntensityKernels, the perimeter and the convex hull from the ROIs, as in the Analyzer of ImageJ.
+ * Areas and lengths are calibrated, as in the ResultsTable. As in ImageJ, the axes of the ellipse are 0 if the pixels
+ * are not square, and so are the shape descriptors that depend on them (AR NaN, Round infinite).
+ */
+public class RoiMeasurements {
+
+    // One value per ROI, as the columns Area, Mean, StdDev, Perim., Major, Minor, Circ., AR, Round and Solidity
+    final double[] area, mean, std, perimeter, major, minor, circularity, AR, roundness, solidity;
+
+    private RoiMeasurements(int n) {
+        area = new double[n];
+        mean = new double[n];
+        std = new double[n];
+        perimeter = new double[n];
+        major = new double[n];
+        minor = new double[n];
+        circularity = new double[n];
+        AR = new double[n];
+        roundness = new double[n];
+        solidity = new double[n];
+    }
+
+    /**
+     * Measures the ROIs on an image.
+     *
+     * @param imp  The image, with its calibration
+     * @param rois The ROIs
+     * @return The features of each ROI, in the order of the ROIs
+     */
+    public static RoiMeasurements measure(ImagePlus imp, Roi[] rois) {
+        RoiMeasurements m = new RoiMeasurements(rois.length);
+        ImageProcessor ip = imp.getProcessor();
+        Calibration cal = imp.getCalibration();
+        double pw = cal.pixelWidth, ph = cal.pixelHeight;
+        double axisScale = Math.abs(pw - ph) / pw < .01 ? pw : 0; // as ImageStatistics.fitEllipse
+        for (int j = 0; j < rois.length; j++) {
+            Roi roi = rois[j];
+            IntensityKernels.Moments moments = IntensityKernels.measure(ip, roi.getMask(), roi.getBounds());
+            double[] ellipse = moments.ellipse();
+
+            roi.setImage(imp); // the perimeter is calibrated with the image
+            m.area[j] = moments.n * pw * ph;
+            m.mean[j] = moments.mean();
+            m.std[j] = moments.stdDev();
+            m.perimeter[j] = roi.getLength();
+            m.major[j] = ellipse[0] * axisScale;
+            m.minor[j] = ellipse[1] * axisScale;
+
+            double circularity = m.perimeter[j] == 0 ? 0 : 4 * Math.PI * (m.area[j] / (m.perimeter[j] * m.perimeter[j]));
+            m.circularity[j] = Math.min(circularity, 1);
+            m.AR[j] = m.major[j] / m.minor[j];
+            m.roundness[j] = 4 * m.area[j] / (Math.PI * m.major[j] * m.major[j]);
+            // the hull is rounded to integer vertices, as in the Analyzer, so a traced mask has a solidity of 1
+            m.solidity[j] = moments.n / polygonArea(roi.getConvexHull());
+        }
+        return m;
+    }
+
+    /**
+     * Computes the area of a polygon with integer vertices in pixels (shoelace formula), NaN without polygon.
+     */
+    static double polygonArea(Polygon p) {
+        if (p == null) return Double.NaN;
+        long a = 0;
+        for (int i = 0, k = p.npoints - 1; i < p.npoints; k = i++) {
+            a += (long) (p.xpoints[i] + p.xpoints[k]) * (p.ypoints[i] - p.ypoints[k]);
+        }
+        return Math.abs(a / 2.0);
+    }
+}
@@ -0,0 +1,68 @@
+package ch.epfl.bio410;
+
+/**
+ * This class keeps the count, mean and variance of a stream of values (Welford's algorithm).
+ * Two RunningStats built on different parts of the data can be merged (Chan et al.),
+ * so partial results of parallel workers give the same result as a single pass.
+ */
+public class RunningStats {
+
+    // Number of values
+    long n = 0;
+
+    // Mean of the values
+    double mean = 0;
+
+    // Sum of the squared differences to the mean
+    double m2 = 0;
+
+    /**
+     * Adds one value.
+     *
+     * @param x The value
+     */
+    public void add(double x) {
+        n++;
+        double delta = x - mean;
+        mean += delta / n;
+        m2 += delta * (x - mean);
+    }
+
+    /**
+     * Adds all the values of another RunningStats.
+     *
+     * @param other The statistics to merge into this one
+     */
+    public void merge(RunningStats other) {
+        if (other.n == 0) return;
+        if (n == 0) {
+            n = other.n;
+            mean = other.mean;
+            m2 = other.m2;
+            return;
+        }
+        long total = n + other.n;
+        double delta = other.mean - mean;
+        mean += delta * other.n / total;
+        m2 += other.m2 + delta * delta * n * other.n / total;
+        n = total;
+    }
+
+    /**
+     * Gets the mean of the values.
+     *
+     * @return The mean, NaN if there are no values
+     */
+    public double getMean() {
+        return n == 0 ? Double.NaN : mean;
+    }
+
+    /**
+     * Gets the sample variance of the values.
+     *
+     * @return The variance, NaN if there are less than two values
+     */
+    public double getVariance() {
+        return n < 2 ? Double.NaN : m2 / (n - 1);
+    }
+}
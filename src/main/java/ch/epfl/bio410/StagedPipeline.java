@@ -0,0 +1,308 @@
+package ch.epfl.bio410;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs the stages of the analysis of the FoVs at the same time, each on its own threads:
+ * load (FovScheduler) -> preprocess -> segment -> measure -> classify -> write.
+ * The stages are connected by bounded queues, so a slow stage holds back the ones before it instead of piling up FoVs,
+ * and the queue depths reported during the run show which stage is the bottleneck.
+ * An entry whose analysis ends early (noisy, empty, failed) goes straight to the write stage.
+ * With the adaptive sampling, the entries of a converged well are not loaded anymore, the ones in flight are finished.
+ * The threads of the stages come from an executor that can be shared by several runs (the jobs of the daemon).
+ */
+public class StagedPipeline {
+
+    // Names of the stages after the loading, in the order of the graph
+    static final String[] STAGE_NAMES = {"preprocess", "segment", "measure", "classify", "write"};
+    static final int PREPROCESS = 0, SEGMENT = 1, MEASURE = 2, CLASSIFY = 3, WRITE = 4;
+
+    // Marker sent down the queues once all the entries went through a stage
+    private static final FovContext END = new FovContext(null, null, null, null, null, null);
+
+    // The analysis whose stage methods are run
+    final ProjectCommand command;
+
+    // User parameters with the threads of each stage and the queue capacity
+    final Parameters params;
+
+    // Stages, in the order of the graph
+    final Stage[] stages = new Stage[STAGE_NAMES.length];
+
+    // Pools of the finished entries, lent again to the next entries
+    final Queue<BufferPool> pools = new ConcurrentLinkedQueue<>();
+
+    // Threads of all the stages, shared with the other runs, or created for this run
+    final ExecutorService executor;
+    final boolean ownExecutor;
+
+    // Loader of the images, the first stage
+    FovScheduler scheduler;
+
+    /**
+     * Body of a stage, one of the stage methods of ProjectCommand.
+     */
+    interface StageBody {
+        /**
+         * @return true if the entry goes on to the next stage, false if it goes straight to the write stage
+         */
+        boolean run(FovContext ctx);
+    }
+
+    /**
+     * Creates the executor of the stage threads, it starts new threads as needed and keeps the idle ones for the next runs.
+     *
+     * @return The executor, its threads do not keep the JVM alive
+     */
+    public static ExecutorService newExecutor() {
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "Pipeline");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * This class is one stage: its input queue, its threads and its counters.
+     */
+    class Stage {
+        final int index;
+        final String name;
+        final int threads;
+        final StageBody body;
+        final BlockingQueue<FovContext> queue;
+
+        // Threads of the stage still running, the last one passes the end marker on
+        final AtomicInteger running;
+
+        // Threads currently working on an entry
+        final AtomicInteger busy = new AtomicInteger();
+
+        // Entries done and time spent on them by all the threads, in nanoseconds
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicLong busyNanos = new AtomicLong();
+
+        Stage(int index, int threads, StageBody body) {
+            this.index = index;
+            this.name = STAGE_NAMES[index];
+            this.threads = Math.max(1, threads);
+            this.body = body;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, params.pipeline_queue_capacity));
+            this.running = new AtomicInteger(this.threads);
+        }
+
+        /**
+         * Body of a thread of the stage: runs the entries of the queue until the end marker.
+         */
+        void work() {
+            Thread.currentThread().setName("Pipeline " + name); // the thread is lent by the executor for this stage
+            try {
+                while (true) {
+                    FovContext ctx = queue.take();
+                    if (ctx == END) {
+                        queue.put(END); // for the other threads of the stage
+                        break;
+                    }
+                    busy.incrementAndGet();
+                    long start = System.nanoTime();
+                    long allocated = index < WRITE ? BufferPool.threadAllocatedBytes() : -1; // the write stage measures itself
+                    boolean next;
+                    try {
+                        next = body.run(ctx);
+                    } catch (Throwable e) {
+                        // also an Error (e.g. an OutOfMemoryError on a large FoV): the thread goes on, and the entry
+                        // still goes to the write stage, which gives its memory and its buffers back
+                        System.err.println("Error in the " + name + " stage of " + ctx.entry.name + ": " + e);
+                        ctx.entry.comment = WellEntry.EntryComments.FAILED;
+                        next = false;
+                    } finally {
+                        if (index < WRITE) ctx.pool.measure(allocated);
+                        busyNanos.addAndGet(System.nanoTime() - start);
+                        busy.decrementAndGet();
+                        done.incrementAndGet();
+                    }
+                    if (index < WRITE)
+                        stages[next ? index + 1 : WRITE].queue.put(ctx);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (running.decrementAndGet() == 0 && index < WRITE) {
+                    try {
+                        stages[index + 1].queue.put(END); // every entry of this stage is already queued further down
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor for StagedPipeline.
+     *
+     * @param command The analysis, with its parameters, classifier, archive and QC renderer ready,
+     *                and the executor of the stage threads if it is shared (pipelineExecutor)
+     */
+    public StagedPipeline(ProjectCommand command) {
+        this.command = command;
+        this.params = command.params;
+        this.ownExecutor = command.pipelineExecutor == null;
+        this.executor = ownExecutor ? newExecutor() : command.pipelineExecutor;
+        stages[PREPROCESS] = new Stage(PREPROCESS, params.pipeline_preprocess_threads, command::preprocess);
+        stages[SEGMENT] = new Stage(SEGMENT, params.pipeline_segment_threads, command::segmentStage);
+        stages[MEASURE] = new Stage(MEASURE, params.pipeline_measure_threads, command::measure);
+        stages[CLASSIFY] = new Stage(CLASSIFY, params.pipeline_classify_threads, command::classify);
+        stages[WRITE] = new Stage(WRITE, params.pipeline_write_threads, this::write);
+    }
+
+    /**
+     * Analyzes all the entries of the wells, the entries are loaded in the order of the wells.
+     *
+     * @param wells The wells to analyze
+     * @return true if the pipeline went over all the entries, false if it was interrupted
+     */
+    public boolean run(List<Well> wells) {
+        List<WellEntry> entries = new ArrayList<>();
+        Map<WellEntry, Well> wellOf = new IdentityHashMap<>();
+        for (Well well : wells) {
+            command.startSampling(well);
+            for (WellEntry entry : AdaptiveSampler.order(well, params)) {
+                entries.add(entry);
+                wellOf.put(entry, well);
+            }
+        }
+
+        long start = System.nanoTime();
+        List<Future<?>> workers = new ArrayList<>();
+        for (Stage stage : stages) {
+            for (int t = 0; t < stage.threads; t++) {
+                workers.add(executor.submit(stage::work));
+            }
+        }
+        ScheduledExecutorService monitor = null;
+        if (params.pipeline_report_s > 0) {
+            monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Pipeline monitor");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1, (long) (params.pipeline_report_s * 1000));
+            monitor.scheduleAtFixedRate(() -> System.out.println(depths()), period, period, TimeUnit.MILLISECONDS);
+        }
+
+        // the scheduler loads the entries as long as they fit in the memory budget, they are released by the write stage
+        scheduler = new FovScheduler(params);
+        scheduler.skipIf(entry -> command.isSampled(wellOf.get(entry)));
+        scheduler.start(entries, params.pipeline_load_threads);
+        boolean result = true;
+        try {
+            FovScheduler.LoadedEntry loaded;
+            while ((loaded = scheduler.next()) != null) {
+                if (command.isSampled(wellOf.get(loaded.entry))) { // loaded ahead before the well converged
+                    scheduler.release(loaded);
+                    continue;
+                }
+                BufferPool pool = pools.poll();
+                FovContext ctx = new FovContext(loaded.entry, wellOf.get(loaded.entry), loaded.nucl, loaded.yfp,
+                        pool != null ? pool : BufferPool.create(), loaded);
+                stages[PREPROCESS].queue.put(ctx);
+            }
+            stages[PREPROCESS].queue.put(END);
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) { // the stages catch the errors of the entries, this is a bug
+                    System.err.println("Error in a pipeline thread: " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<?> worker : workers) worker.cancel(true);
+            result = false;
+        } finally {
+            if (monitor != null) monitor.shutdownNow();
+            if (ownExecutor) executor.shutdown();
+            pools.clear(); // the buffers of this run are not kept for the next jobs of a daemon
+        }
+        System.out.println(summary(System.nanoTime() - start));
+        for (Well well : wells) {
+            command.finishSampling(well);
+        }
+        return result;
+    }
+
+    /**
+     * Write stage: records the results of the entry, archives its ROIs, hands its QC images over
+     * and gives its memory back to the scheduler and its buffers back to the pools.
+     *
+     * @param ctx The finished entry
+     * @return false, this is the last stage
+     */
+    boolean write(FovContext ctx) {
+        long allocated = BufferPool.threadAllocatedBytes();
+        try {
+            command.finishEntry(ctx);
+            command.addResult(ctx.well, ctx.entry);
+        } finally {
+            ctx.pool.measure(allocated); // before the entry ends, the other stages added theirs already
+            ctx.pool.endEntry(); // the buffers lent for this entry are reused by the next one
+            pools.add(ctx.pool);
+            scheduler.release(ctx.loaded);
+        }
+        return false;
+    }
+
+    /**
+     * Builds the line of the queue depths: entries waiting in front of each stage and threads busy.
+     *
+     * @return A human readable report
+     */
+    String depths() {
+        StringBuilder sb = new StringBuilder("Pipeline queues: load ").append(scheduler == null ? 0 : scheduler.pending()).append(" ready");
+        for (Stage stage : stages) {
+            sb.append(" | ").append(stage.name).append(' ').append(stage.queue.size()).append('/').append(Math.max(1, params.pipeline_queue_capacity))
+                    .append(" waiting, ").append(stage.busy.get()).append('/').append(stage.threads).append(" busy");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Builds the summary of the run: for each stage, the entries done and the fraction of its threads' time spent working.
+     * The stage whose threads were the busiest is the bottleneck.
+     *
+     * @param wallNanos Duration of the run
+     * @return A human readable report
+     */
+    String summary(long wallNanos) {
+        StringBuilder sb = new StringBuilder(String.format("Pipeline: %.1f s", wallNanos / 1e9));
+        Stage bottleneck = null;
+        double highest = -1;
+        for (Stage stage : stages) {
+            double utilization = wallNanos <= 0 ? 0 : stage.busyNanos.get() / ((double) wallNanos * stage.threads);
+            sb.append(String.format(" | %s: %d FoVs, %d threads %.0f%% busy", stage.name, stage.done.get(), stage.threads, 100 * utilization));
+            if (utilization > highest) {
+                highest = utilization;
+                bottleneck = stage;
+            }
+        }
+        if (bottleneck != null)
+            sb.append(" | bottleneck: ").append(bottleneck.name);
+        return sb.toString();
+    }
+}
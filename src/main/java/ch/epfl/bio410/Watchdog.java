@@ -0,0 +1,113 @@
+package ch.epfl.bio410;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class runs one stage of the analysis of a WellEntry with a deadline.
+ * A stage that takes too long is cancelled (its thread is interrupted) and retried a bounded number of times,
+ * so that a single hung call cannot stall the analysis of the whole plate.
+ */
+public class Watchdog {
+
+    // Threads running the stages, daemon threads so that a stuck call never keeps Fiji alive
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Watchdog stage");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Runs a stage with a deadline and bounded retries.
+     *
+     * @param stage    Name of the stage, used in the logs
+     * @param task     The work to do
+     * @param timeout  Deadline of one attempt in seconds, 0 or less means no deadline
+     * @param retries  Number of retries after the first attempt
+     * @return The result of the first successful attempt
+     * @throws StageFailedException if every attempt failed or timed out
+     */
+    public static <T> T call(String stage, Callable<T> task, double timeout, int retries) throws StageFailedException {
+        return call(stage, task, timeout, retries, 0);
+    }
+
+    /**
+     * Runs a stage with a deadline, bounded retries and an optional hedge:
+     * if an attempt has not finished after the hedge delay, a second copy is started and the first one to finish wins.
+     * Only idempotent stages (e.g. the Python classifier) should be hedged.
+     *
+     * @param stage   Name of the stage, used in the logs
+     * @param task    The work to do
+     * @param timeout Deadline of one attempt in seconds, 0 or less means no deadline
+     * @param retries Number of retries after the first attempt
+     * @param hedge   Delay in seconds before starting a second copy of the attempt, 0 or less disables hedging
+     * @return The result of the first successful attempt
+     * @throws StageFailedException if every attempt failed or timed out
+     */
+    public static <T> T call(String stage, Callable<T> task, double timeout, int retries, double hedge) throws StageFailedException {
+        Throwable lastError = null;
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            CompletionService<T> completion = new ExecutorCompletionService<>(executor);
+            List<Future<T>> running = new ArrayList<>();
+            long start = System.nanoTime();
+            long deadline = timeout > 0 ? start + (long) (timeout * 1e9) : Long.MAX_VALUE;
+            try {
+                running.add(completion.submit(task));
+                Future<T> done = null;
+                if (hedge > 0 && (timeout <= 0 || hedge < timeout)) {
+                    done = completion.poll((long) (hedge * 1e9), TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        System.out.println(stage + ": slow attempt, starting a hedged copy.");
+                        running.add(completion.submit(task));
+                    }
+                }
+                // wait for the first copy that finishes without error
+                int pending = running.size() - (done == null ? 0 : 1);
+                while (true) {
+                    if (done != null) {
+                        try {
+                            return done.get();
+                        } catch (ExecutionException e) {
+                            lastError = e.getCause();
+                            System.out.println(stage + ": attempt failed: " + lastError);
+                        }
+                    }
+                    if (pending == 0) break;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    done = completion.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (done == null) break; // deadline reached
+                    pending--;
+                }
+                if (System.nanoTime() >= deadline) {
+                    lastError = new TimeoutException(stage + " exceeded " + timeout + " s");
+                    System.out.println(stage + ": attempt " + (attempt + 1) + " timed out after " + timeout + " s.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StageFailedException(stage, e);
+            } finally {
+                for (Future<T> f : running) f.cancel(true); // kill what is still running
+            }
+        }
+        throw new StageFailedException(stage, lastError);
+    }
+
+    /**
+     * Thrown when a stage failed or timed out on every attempt.
+     */
+    public static class StageFailedException extends Exception {
+        public StageFailedException(String stage, Throwable cause) {
+            super(stage + " failed after all retries", cause);
+        }
+    }
+}
@@ -33,9 +33,15 @@ public class Well {
     // List of unmatched entry keys (entries missing data)
     List<String> unmatchedEntries;
 
-    // List of results (WellEntry objects)
+    // List of results (WellEntry objects), in the order they finished
     ArrayList<WellEntry> results = new ArrayList<>();
 
+    // Running aggregate of the finished entries
+    WellAggregate aggregate = new WellAggregate();
+
+    // Stopping rule of the adaptive sampling, null if every FoV is analyzed
+    AdaptiveSampler sampler = null;
+
     /**
      * Constructor for the Well class.
      *
@@ -60,6 +66,16 @@ public class Well {
         return this.wellLetter;
     }
 
+    /**
+     * Records a finished WellEntry and adds it to the running aggregate of the well.
+     *
+     * @param entry The finished WellEntry
+     */
+    synchronized void addResult(WellEntry entry){
+        results.add(entry);
+        aggregate.add(entry);
+    }
+
     /**
      * This method goes over all the files in the well and creates entries to process.
      *
@@ -84,6 +100,7 @@ public class Well {
 
                     // Check existing entry
                     WellEntry wellEntry = wellEntries.getOrDefault(key, new WellEntry(key,Integer.parseInt(fieldOfView),null, null));
+                    wellEntry.wellName = name;
                     if ("YFP".equalsIgnoreCase(channel)) {
                         wellEntry.setYellowChannelPath(imagePath.toString());
                     } else if ("TexasRed".equalsIgnoreCase(channel)) {
@@ -0,0 +1,104 @@
+package ch.epfl.bio410;
+
+/**
+ * This class aggregates the results of WellEntries as they finish, for one Well or for the whole plate.
+ * It keeps the counts of cells per type, the mean and variance of the ratios to nuclei over the FoVs,
+ * and quantile sketches of yfp_mean_in and yfp_mean_out of the counted cells.
+ * Aggregates built by different workers are merged with merge().
+ */
+public class WellAggregate {
+
+    // Header of the summary csv file, the columns follow toCsvLine()
+    static final String CSV_HEADER = "Name,FoVs,FoVs Analyzed,Total Nuclei,Total Nuclei Metaphase,Total Enriched,Total Depleted,Total Intermediate,"
+            + "Enriched to Nuclei Ratio Mean,Enriched to Nuclei Ratio Variance,Depleted to Nuclei Ratio Mean,Depleted to Nuclei Ratio Variance,"
+            + "Intermediate to Nuclei Ratio Mean,Intermediate to Nuclei Ratio Variance,"
+            + "YFP In P10,YFP In Median,YFP In P90,YFP Out P10,YFP Out Median,YFP Out P90,FoVs Sampled";
+
+    // Number of finished FoVs
+    long fovs = 0;
+
+    // Number of FoVs whose ratios are meaningful (comment Normal or No mitosis)
+    long fovsAnalyzed = 0;
+
+    // Number of FoVs that went through the analysis, all but the ones skipped by the adaptive sampling
+    long fovsSampled = 0;
+
+    // Cell counts
+    long totalNuclei = 0, totalMetaphase = 0, totalEnriched = 0, totalDepleted = 0, totalInter = 0;
+
+    // Ratios to nuclei over the analyzed FoVs
+    final RunningStats enrichedRatio = new RunningStats();
+    final RunningStats depletedRatio = new RunningStats();
+    final RunningStats intermediateRatio = new RunningStats();
+
+    // yfp intensities of the counted cells
+    final QuantileSketch yfpIn = new QuantileSketch();
+    final QuantileSketch yfpOut = new QuantileSketch();
+
+    /**
+     * Adds a finished WellEntry.
+     *
+     * @param entry The WellEntry, with its statistics computed
+     */
+    public synchronized void add(WellEntry entry) {
+        fovs++;
+        if (entry.comment != WellEntry.EntryComments.NOT_SAMPLED) {
+            fovsSampled++;
+        }
+        if (entry.comment != WellEntry.EntryComments.NORMAL && entry.comment != WellEntry.EntryComments.NO_MITOSIS) {
+            return;
+        }
+        fovsAnalyzed++;
+        totalNuclei += (long) entry.total_nuclei;
+        totalMetaphase += (long) entry.total_nuclei_metaphase;
+        totalEnriched += entry.totalEnriched;
+        totalDepleted += entry.totalDepleted;
+        totalInter += entry.totalInter;
+        enrichedRatio.add(entry.enriched_to_nuclei);
+        depletedRatio.add(entry.depleted_to_nuclei);
+        intermediateRatio.add(entry.intermediate_to_nuclei);
+        if (entry.counted_yfp_mean_in != null) {
+            for (double v : entry.counted_yfp_mean_in) yfpIn.add(v);
+            for (double v : entry.counted_yfp_mean_out) yfpOut.add(v);
+        }
+    }
+
+    /**
+     * Adds all the FoVs of another aggregate.
+     *
+     * @param other The aggregate to merge into this one
+     */
+    public synchronized void merge(WellAggregate other) {
+        synchronized (other) {
+            fovs += other.fovs;
+            fovsAnalyzed += other.fovsAnalyzed;
+            fovsSampled += other.fovsSampled;
+            totalNuclei += other.totalNuclei;
+            totalMetaphase += other.totalMetaphase;
+            totalEnriched += other.totalEnriched;
+            totalDepleted += other.totalDepleted;
+            totalInter += other.totalInter;
+            enrichedRatio.merge(other.enrichedRatio);
+            depletedRatio.merge(other.depletedRatio);
+            intermediateRatio.merge(other.intermediateRatio);
+            yfpIn.merge(other.yfpIn);
+            yfpOut.merge(other.yfpOut);
+        }
+    }
+
+    /**
+     * Formats the aggregate as a line of the summary csv file.
+     *
+     * @param name Name of the Well, or "Plate"
+     * @return The csv line, following CSV_HEADER
+     */
+    public synchronized String toCsvLine(String name) {
+        return String.format("%s,%d,%d,%d,%d,%d,%d,%d,%f,%f,%f,%f,%f,%f,%f,%f,%f,%f,%f,%f,%d",
+                name, fovs, fovsAnalyzed, totalNuclei, totalMetaphase, totalEnriched, totalDepleted, totalInter,
+                enrichedRatio.getMean(), enrichedRatio.getVariance(),
+                depletedRatio.getMean(), depletedRatio.getVariance(),
+                intermediateRatio.getMean(), intermediateRatio.getVariance(),
+                yfpIn.getQuantile(0.1), yfpIn.getQuantile(0.5), yfpIn.getQuantile(0.9),
+                yfpOut.getQuantile(0.1), yfpOut.getQuantile(0.5), yfpOut.getQuantile(0.9), fovsSampled);
+    }
+}
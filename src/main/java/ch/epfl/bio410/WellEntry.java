@@ -7,9 +7,15 @@ package ch.epfl.bio410;
  */
 public class WellEntry {
 
+    // Header of the csv files with one line per WellEntry
+    static final String CSV_HEADER = "Well Name,FoV,Enriched to Nuclei Ratio,Total Enriched,Depleted to Nuclei Ratio,Total Depleted,Intermediate to Nuclei Ratio,Total Intermediate,Total Nuclei,Total Nuclei Metaphase,Comment,Nuclei Count Drift";
+
     // Name of the well
     String name;
 
+    // Name of the folder of the well holding this entry
+    String wellName;
+
     // Field of view number
     int fov;
 
@@ -46,6 +52,16 @@ public class WellEntry {
     // Comment on the entry
     EntryComments comment = EntryComments.NORMAL;
 
+    // Relative difference of the nuclei count between the downsampled and the full resolution segmentation, NaN if not checked
+    float nuclei_count_drift = Float.NaN;
+
+    // Per-cell features kept for the parameter sweep, null otherwise
+    FovFeatures features;
+
+    // yfp intensities of the counted cells, inside the cell and in the external band
+    double[] counted_yfp_mean_in;
+    double[] counted_yfp_mean_out;
+
 
     /**
      * Constructor for WellEntry.
@@ -90,6 +106,23 @@ public class WellEntry {
         return redChannelPath != null && yellowChannelPath != null;
     }
 
+    /**
+     * Formats the computed statistics of this entry as a line of the output csv file.
+     *
+     * @param wellName Name of the Well containing this entry
+     * @return The csv line, following CSV_HEADER
+     */
+    public String toCsvLine(String wellName) {
+        return String.format("%s,%d,%f,%d,%f,%d,%f,%d,%f,%f,%s,%f",
+                wellName,
+                fov, enriched_to_nuclei, totalEnriched,
+                depleted_to_nuclei, totalDepleted,
+                intermediate_to_nuclei, totalInter,
+                total_nuclei, total_nuclei_metaphase,
+                getComment(), nuclei_count_drift
+        );
+    }
+
     /**
      * Gets the comment associated with this well entry.
      *
@@ -107,6 +140,12 @@ public class WellEntry {
             case EMPTY:
                 result = "Image has no cells";
                 break;
+            case FAILED:
+                result = "The analysis of this entry failed or timed out after all retries";
+                break;
+            case NOT_SAMPLED:
+                result = "Not analyzed, the fractions of the well had converged (adaptive sampling)";
+                break;
 
             default:
                 break;
@@ -119,6 +158,6 @@ public class WellEntry {
      * In our data set, we encountered the following cases of wells.
      */
     public enum EntryComments {
-        NORMAL, NOISY, NO_MITOSIS, EMPTY
+        NORMAL, NOISY, NO_MITOSIS, EMPTY, FAILED, NOT_SAMPLED
     }
 }
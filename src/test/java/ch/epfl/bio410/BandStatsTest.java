@@ -0,0 +1,89 @@
+package ch.epfl.bio410;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.measure.Measurements;
+import ij.plugin.filter.EDM;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the band of BandStats holds the same pixels as "Make Band..." on a few ROIs and band sizes.
+ * "Make Band..." needs a dialog, so its steps are run here as in ij.plugin.Selection.makeBand:
+ * 8-bit distance map of the outside of the ROI, threshold at the band size, wand, then the ROI is subtracted.
+ */
+public class BandStatsTest {
+
+    /**
+     * Builds the band of a ROI as "Make Band..." does.
+     *
+     * @param imp The image
+     * @param roi The ROI
+     * @param n   Size of the band in pixels
+     * @return The band
+     */
+    static Roi makeBand(ImagePlus imp, Roi roi, int n) {
+        Rectangle r = roi.getBounds();
+        ImageProcessor roiMask = roi.getMask();
+        if (roiMask == null) {
+            roiMask = new ByteProcessor(r.width, r.height);
+            roiMask.invert();
+        }
+        ByteProcessor mask = new ByteProcessor(imp.getWidth(), imp.getHeight());
+        mask.insert(roiMask, r.x, r.y);
+        // the ROI (255) is the background of the distance map, the distances are rounded to 8 bits
+        FloatProcessor distances = new EDM().makeFloatEDM(mask, (byte) 255, false);
+        mask.setPixels(0, distances);
+        ImagePlus edm = new ImagePlus("mask", mask);
+        mask.setThreshold(0, n, ImageProcessor.NO_LUT_UPDATE);
+        IJ.doWand(edm, r.x + r.width / 2, r.y + r.height / 2, 0, null);
+        return new ShapeRoi(edm.getRoi()).not(new ShapeRoi(roi));
+    }
+
+    /**
+     * Compares BandStats with the statistics of the band of "Make Band...".
+     */
+    static void assertSameBand(ImagePlus imp, Roi roi, int n) {
+        imp.setRoi(makeBand(imp, roi, n));
+        ImageStatistics expected = imp.getStatistics(Measurements.MEAN | Measurements.STD_DEV);
+        imp.deleteRoi();
+        double[] actual = BandStats.band(imp.getProcessor(), roi, n);
+        String name = roi.getTypeAsString() + ", band " + n;
+        assertEquals(name + " mean", expected.mean, actual[0], 1e-9 * expected.mean);
+        assertEquals(name + " std", expected.stdDev, actual[1], 1e-6 * expected.stdDev);
+    }
+
+    @Test
+    public void matchesMakeBand() {
+        ShortProcessor ip = new ShortProcessor(IntensityKernelsTest.WIDTH, IntensityKernelsTest.HEIGHT);
+        IntensityKernelsTest.fill(ip, 6);
+        ImagePlus imp = new ImagePlus("band", ip);
+        Roi[] rois = {
+                new Roi(20, 15, 25, 18),
+                // against the edges of the image
+                new Roi(0, 80, 20, 16),
+                new OvalRoi(55, 40, 31, 22),
+                new PolygonRoi(new int[]{70, 100, 110, 92, 75}, new int[]{8, 12, 30, 40, 28}, 5, Roi.POLYGON),
+                // a star-convex polygon with float vertices, as the ROIs of Stardist
+                new PolygonRoi(new float[]{30.4f, 36.2f, 40.7f, 36.9f, 30.1f, 24.8f, 21.3f, 25.6f},
+                        new float[]{50.2f, 53.1f, 60.3f, 67.8f, 70.6f, 66.9f, 60.1f, 53.4f}, Roi.POLYGON)
+        };
+        for (Roi roi : rois) {
+            for (int n = 1; n <= 3; n++) {
+                assertSameBand(imp, roi, n);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ch.epfl.bio410;
+
+import de.lighti.clipper.DefaultClipper;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the grid NMS keeps the same candidates as the pairwise suppression of Stardist,
+ * which compares every candidate with all the kept ones, on synthetic maps of crowded nuclei.
+ */
+public class GridNmsTest {
+
+    static final int WIDTH = 96, HEIGHT = 80, RAYS = 32;
+
+    /**
+     * Builds the maps of nuclei of random sizes, some of them touching: the probability decreases
+     * from the center of each nucleus, and the distances are the radius of the nucleus with some noise.
+     */
+    static GridNms candidates(long seed, int grid) {
+        Random random = new Random(seed);
+        float[] prob = new float[WIDTH * HEIGHT];
+        float[][] dist = new float[RAYS][WIDTH * HEIGHT];
+        for (int nucleus = 0; nucleus < 25; nucleus++) {
+            double cx = random.nextDouble() * WIDTH, cy = random.nextDouble() * HEIGHT;
+            double radius = 3 + random.nextDouble() * 6;
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    double d = Math.hypot(x - cx, y - cy);
+                    float p = (float) (1 - d / radius);
+                    if (p <= prob[y * WIDTH + x]) continue;
+                    prob[y * WIDTH + x] = p;
+                    for (int k = 0; k < RAYS; k++) {
+                        dist[k][y * WIDTH + x] = (float) (radius * (0.8 + 0.4 * random.nextDouble()));
+                    }
+                }
+            }
+        }
+        return new GridNms(prob, dist, WIDTH, HEIGHT, grid, 0.3);
+    }
+
+    /**
+     * The pairwise suppression of Stardist: by decreasing score, a candidate is kept
+     * unless it overlaps a kept candidate above the threshold.
+     */
+    static int[] pairwise(GridNms nms, double threshold) {
+        DefaultClipper clipper = new DefaultClipper();
+        List<Integer> kept = new ArrayList<>();
+        for (int i = 0; i < nms.size(); i++) {
+            boolean suppressed = false;
+            for (int j : kept) {
+                if (nms.overlap(clipper, j, i) > threshold) {
+                    suppressed = true;
+                    break;
+                }
+            }
+            if (!suppressed) kept.add(i);
+        }
+        return kept.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Test
+    public void keepsTheCandidatesOfThePairwiseSuppression() throws InterruptedException {
+        for (long seed = 0; seed < 5; seed++) {
+            for (int grid : new int[]{1, 2}) {
+                GridNms nms = candidates(seed, grid);
+                assertTrue(nms.size() > 0);
+                for (double threshold : new double[]{0.1, 0.3, 0.5}) {
+                    int[] expected = pairwise(nms, threshold);
+                    assertArrayEquals("seed " + seed + ", grid " + grid + ", threshold " + threshold, expected, nms.suppress(threshold, 1));
+                    assertArrayEquals("seed " + seed + ", grid " + grid + ", threshold " + threshold + ", 4 strips", expected, nms.suppress(threshold, 4));
+                }
+            }
+        }
+    }
+}
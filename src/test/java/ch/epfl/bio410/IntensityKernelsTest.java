@@ -0,0 +1,96 @@
+package ch.epfl.bio410;
+
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.measure.Measurements;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the sums of IntensityKernels give the same statistics as ImageJ on a few ROIs,
+ * for 16-bit and float images.
+ */
+public class IntensityKernelsTest {
+
+    static final int WIDTH = 128, HEIGHT = 96;
+
+    /**
+     * Builds ROIs of each kind handled by the feature stage: rectangle, oval and polygon.
+     */
+    static Roi[] rois() {
+        return new Roi[]{
+                new Roi(10, 12, 30, 20),
+                new OvalRoi(50, 40, 37, 25),
+                new PolygonRoi(new int[]{70, 110, 120, 95, 75}, new int[]{5, 10, 35, 50, 30}, 5, Roi.POLYGON)
+        };
+    }
+
+    /**
+     * Fills an image with reproducible noise over a gradient.
+     */
+    static void fill(ImageProcessor ip, long seed) {
+        Random random = new Random(seed);
+        for (int y = 0; y < ip.getHeight(); y++) {
+            for (int x = 0; x < ip.getWidth(); x++) {
+                ip.setf(x, y, (float) (100 + 20 * x + 5 * y + random.nextInt(4000)));
+            }
+        }
+    }
+
+    /**
+     * Compares the kernel with ImageStatistics on every ROI of an image.
+     */
+    static void assertSameStatistics(ImagePlus imp) {
+        int measurements = Measurements.AREA | Measurements.MEAN | Measurements.STD_DEV | Measurements.ELLIPSE;
+        for (Roi roi : rois()) {
+            imp.setRoi(roi);
+            ImageStatistics expected = imp.getStatistics(measurements);
+            IntensityKernels.Moments moments = IntensityKernels.measure(imp.getProcessor(), roi.getMask(), roi.getBounds());
+            double[] ellipse = moments.ellipse();
+
+            String name = roi.getTypeAsString();
+            assertEquals(name + " pixels", expected.pixelCount, moments.n);
+            assertEquals(name + " mean", expected.mean, moments.mean(), 1e-9 * Math.abs(expected.mean));
+            assertEquals(name + " std", expected.stdDev, moments.stdDev(), 1e-6 * expected.stdDev);
+            assertEquals(name + " major", expected.major, ellipse[0], 1e-6 * expected.major);
+            assertEquals(name + " minor", expected.minor, ellipse[1], 1e-6 * expected.minor);
+        }
+    }
+
+    @Test
+    public void shortImageMatchesImageStatistics() {
+        ShortProcessor ip = new ShortProcessor(WIDTH, HEIGHT);
+        fill(ip, 1);
+        assertSameStatistics(new ImagePlus("short", ip));
+    }
+
+    @Test
+    public void floatImageMatchesImageStatistics() {
+        FloatProcessor ip = new FloatProcessor(WIDTH, HEIGHT);
+        fill(ip, 2);
+        assertSameStatistics(new ImagePlus("float", ip));
+    }
+
+    @Test
+    public void rectangleWithoutMaskMatchesImageStatistics() {
+        ShortProcessor ip = new ShortProcessor(WIDTH, HEIGHT);
+        fill(ip, 3);
+        ImagePlus imp = new ImagePlus("short", ip);
+        Roi roi = new Roi(5, 7, 41, 23);
+        imp.setRoi(roi);
+        ImageStatistics expected = imp.getStatistics(Measurements.MEAN | Measurements.STD_DEV);
+        IntensityKernels.Moments moments = IntensityKernels.measure(ip, null, roi.getBounds());
+        assertEquals(41 * 23, moments.n);
+        assertEquals(expected.mean, moments.mean(), 1e-9 * expected.mean);
+        assertEquals(expected.stdDev, moments.stdDev(), 1e-6 * expected.stdDev);
+    }
+}
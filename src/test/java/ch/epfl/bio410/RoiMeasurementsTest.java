@@ -0,0 +1,68 @@
+package ch.epfl.bio410;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.measure.Measurements;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.Analyzer;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that RoiMeasurements gives the columns of "Measure" on a few ROIs, on calibrated images with square and non-square pixels.
+ * The Analyzer writes to its own ResultsTable, as "Measure" does to the global one.
+ */
+public class RoiMeasurementsTest {
+
+    // Columns compared, with the relative tolerance of each
+    static final String[] COLUMNS = {"Area", "Mean", "StdDev", "Perim.", "Major", "Minor", "Circ.", "AR", "Round", "Solidity"};
+    static final double[] TOLERANCES = {1e-9, 1e-9, 1e-6, 1e-6, 1e-6, 1e-6, 1e-6, 1e-6, 1e-6, 1e-6};
+
+    @Test
+    public void matchesMeasure() {
+        assertSameAsMeasure(0.65, 0.65, 4);
+    }
+
+    @Test
+    public void matchesMeasureWithNonSquarePixels() {
+        // ImageJ gives no ellipse axes for non-square pixels, AR is then NaN and Round infinite
+        assertSameAsMeasure(0.65, 0.8, 5);
+    }
+
+    /**
+     * Measures the ROIs on a calibrated image with RoiMeasurements and with the Analyzer, and compares every column.
+     */
+    static void assertSameAsMeasure(double pixelWidth, double pixelHeight, long seed) {
+        ShortProcessor ip = new ShortProcessor(IntensityKernelsTest.WIDTH, IntensityKernelsTest.HEIGHT);
+        IntensityKernelsTest.fill(ip, seed);
+        ImagePlus imp = new ImagePlus("calibrated", ip);
+        Calibration cal = imp.getCalibration();
+        cal.pixelWidth = pixelWidth;
+        cal.pixelHeight = pixelHeight;
+        cal.setUnit("um");
+
+        Roi[] rois = IntensityKernelsTest.rois();
+        RoiMeasurements m = RoiMeasurements.measure(imp, rois);
+
+        int measurements = Measurements.AREA | Measurements.MEAN | Measurements.STD_DEV | Measurements.PERIMETER
+                | Measurements.ELLIPSE | Measurements.SHAPE_DESCRIPTORS;
+        ResultsTable rt = new ResultsTable();
+        for (Roi roi : rois) {
+            imp.setRoi(roi);
+            new Analyzer(imp, measurements, rt).measure();
+        }
+
+        for (int j = 0; j < rois.length; j++) {
+            double[] actual = {m.area[j], m.mean[j], m.std[j], m.perimeter[j], m.major[j], m.minor[j],
+                    m.circularity[j], m.AR[j], m.roundness[j], m.solidity[j]};
+            for (int c = 0; c < COLUMNS.length; c++) {
+                double expected = rt.getValue(COLUMNS[c], j);
+                assertEquals(rois[j].getTypeAsString() + " " + COLUMNS[c] + " (" + pixelWidth + " x " + pixelHeight + ")",
+                        expected, actual[c], TOLERANCES[c] * Math.abs(expected));
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package ch.epfl.bio410;
+
+/**
+ * This class is a classifier without Python, used by the throughput harness.
+ * A cell is in metaphase if it is elongated (aspect ratio above a threshold), which matches the synthetic plates
+ * and keeps the yfp measurements and the final classification on the measured path.
+ */
+public class StubClassifier implements MetaphaseClassifier {
+
+    // Aspect ratio above which a cell is predicted in metaphase
+    final double minAspectRatio;
+
+    /**
+     * Constructor for StubClassifier.
+     *
+     * @param minAspectRatio Aspect ratio above which a cell is predicted in metaphase
+     */
+    public StubClassifier(double minAspectRatio) {
+        this.minAspectRatio = minAspectRatio;
+    }
+
+    @Override
+    public int classify(FovFeatures features, String name) {
+        for (int j = 0; j < features.n; j++) {
+            features.metaphase[j] = features.AR[j] >= minAspectRatio ? 1 : 0;
+        }
+        return features.n;
+    }
+}
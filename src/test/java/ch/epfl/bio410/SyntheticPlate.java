@@ -0,0 +1,177 @@
+package ch.epfl.bio410;
+
+import ij.ImagePlus;
+import ij.gui.EllipseRoi;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * This class generates a synthetic plate with known nuclei, in the folder layout read by Well.setWellEntries:
+ * one folder per well holding "<L> - <n>(fld <k> wv TexasRed - TexasRed).tif" and "<L> - <n>(fld <k> wv YFP - YFP).tif".
+ * Round nuclei are in interphase, elongated nuclei are in metaphase and are enriched or depleted in YFP.
+ * The ground truth is written in ground_truth.csv next to the wells.
+ */
+public class SyntheticPlate {
+
+    // Size of a pixel in microns, so that the nuclei fit the default area thresholds
+    static final double PIXEL_SIZE = 0.65;
+
+    // Radius in pixels of a nucleus in interphase
+    static final double RADIUS = 6;
+
+    // Half axes in pixels of a nucleus in metaphase
+    static final double MAJOR = 8, MINOR = 3;
+
+    // Background and nucleus intensities of the red channel
+    static final int NUCL_BACKGROUND = 500, NUCL_NUCLEUS = 3000, NUCL_NOISE = 60;
+
+    // Background, enriched and depleted intensities of the yfp channel, the noise is above the default noise threshold
+    static final int YFP_BACKGROUND = 2000, YFP_ENRICHED = 4000, YFP_DEPLETED = 800, YFP_NOISE = 400;
+
+    // Number of wells, FoVs per well, nuclei per FoV and image size in pixels
+    final int wells, fovs, nuclei, size;
+
+    // Fraction of the nuclei in metaphase
+    final double metaphaseFraction;
+
+    // Seed of the generator, the same seed gives the same plate
+    final long seed;
+
+    // Total number of nuclei and of nuclei in metaphase generated
+    long totalNuclei = 0, totalMetaphase = 0;
+
+    /**
+     * Constructor for SyntheticPlate.
+     *
+     * @param wells             Number of wells, at most 26 (one letter each)
+     * @param fovs              Number of FoVs per well
+     * @param nuclei            Number of nuclei per FoV
+     * @param size              Width and height of the images in pixels
+     * @param metaphaseFraction Fraction of the nuclei in metaphase
+     * @param seed              Seed of the generator
+     */
+    public SyntheticPlate(int wells, int fovs, int nuclei, int size, double metaphaseFraction, long seed) {
+        this.wells = Math.min(wells, 26);
+        this.fovs = fovs;
+        this.nuclei = nuclei;
+        this.size = size;
+        this.metaphaseFraction = metaphaseFraction;
+        this.seed = seed;
+    }
+
+    /**
+     * Writes the plate and its ground truth.
+     *
+     * @param dataDir Folder receiving one folder per well
+     * @throws IOException if a file cannot be written
+     */
+    public void write(File dataDir) throws IOException {
+        if (!dataDir.exists() && !dataDir.mkdirs()) {
+            throw new IOException("Unable to create " + dataDir);
+        }
+        Random random = new Random(seed);
+        try (PrintWriter truth = new PrintWriter(new FileWriter(new File(dataDir.getParentFile(), "ground_truth.csv")))) {
+            truth.println("Well Name,FoV,Total Nuclei,Total Nuclei Metaphase,Total Enriched,Total Depleted");
+            for (int w = 0; w < wells; w++) {
+                char letter = (char) ('A' + w);
+                String wellName = letter + "01";
+                File wellDir = new File(dataDir, wellName);
+                if (!wellDir.exists() && !wellDir.mkdirs()) {
+                    throw new IOException("Unable to create " + wellDir);
+                }
+                for (int k = 1; k <= fovs; k++) {
+                    int[] counts = writeFov(wellDir, letter, k, random);
+                    truth.println(wellName + "," + k + "," + counts[0] + "," + counts[1] + "," + counts[2] + "," + counts[3]);
+                    totalNuclei += counts[0];
+                    totalMetaphase += counts[1];
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the two channels of one FoV.
+     *
+     * @return The number of nuclei, of nuclei in metaphase, of enriched and of depleted nuclei
+     */
+    int[] writeFov(File wellDir, char letter, int fov, Random random) {
+        ShortProcessor nucl = new ShortProcessor(size, size);
+        ShortProcessor yfp = new ShortProcessor(size, size);
+        nucl.setValue(NUCL_BACKGROUND);
+        nucl.fill();
+        yfp.setValue(YFP_BACKGROUND);
+        yfp.fill();
+
+        // nuclei on a jittered grid, so that they never touch
+        int cells = (int) Math.ceil(Math.sqrt(nuclei));
+        double step = (double) size / cells;
+        double margin = MAJOR + 2;
+        int[] counts = new int[4];
+        for (int i = 0; i < nuclei && i < cells * cells; i++) {
+            double cx = (i % cells + 0.5) * step + (random.nextDouble() - 0.5) * Math.max(0, step - 2 * margin);
+            double cy = (i / cells + 0.5) * step + (random.nextDouble() - 0.5) * Math.max(0, step - 2 * margin);
+            if (cx < margin || cy < margin || cx > size - margin || cy > size - margin) continue;
+
+            boolean metaphase = random.nextDouble() < metaphaseFraction;
+            Roi roi;
+            if (metaphase) {
+                double angle = random.nextDouble() * Math.PI;
+                double dx = Math.cos(angle) * MAJOR, dy = Math.sin(angle) * MAJOR;
+                roi = new EllipseRoi(cx - dx, cy - dy, cx + dx, cy + dy, MINOR / MAJOR);
+            } else {
+                roi = new OvalRoi(cx - RADIUS, cy - RADIUS, 2 * RADIUS, 2 * RADIUS);
+            }
+            nucl.setValue(NUCL_NUCLEUS);
+            nucl.fill(roi);
+            if (metaphase) {
+                boolean enriched = random.nextBoolean();
+                yfp.setValue(enriched ? YFP_ENRICHED : YFP_DEPLETED);
+                yfp.fill(roi);
+                counts[1]++;
+                counts[enriched ? 2 : 3]++;
+            }
+            counts[0]++;
+        }
+
+        addNoise(nucl, NUCL_NOISE, random);
+        addNoise(yfp, YFP_NOISE, random);
+
+        String prefix = letter + " - 01(fld " + fov + " wv ";
+        save(nucl, new File(wellDir, prefix + "TexasRed - TexasRed).tif"));
+        save(yfp, new File(wellDir, prefix + "YFP - YFP).tif"));
+        return counts;
+    }
+
+    /**
+     * Adds gaussian noise to an image, clamped to the 16-bit range.
+     */
+    static void addNoise(ShortProcessor ip, double sigma, Random random) {
+        short[] pixels = (short[]) ip.getPixels();
+        for (int i = 0; i < pixels.length; i++) {
+            double v = (pixels[i] & 0xffff) + random.nextGaussian() * sigma;
+            pixels[i] = (short) Math.max(0, Math.min(65535, Math.round(v)));
+        }
+    }
+
+    /**
+     * Saves a channel as a calibrated 16-bit TIFF file.
+     */
+    static void save(ShortProcessor ip, File file) {
+        ip.resetRoi();
+        ImagePlus imp = new ImagePlus(file.getName(), ip);
+        Calibration cal = imp.getCalibration();
+        cal.pixelWidth = PIXEL_SIZE;
+        cal.pixelHeight = PIXEL_SIZE;
+        cal.setUnit("micron");
+        new FileSaver(imp).saveAsTiff(file.getPath());
+    }
+}
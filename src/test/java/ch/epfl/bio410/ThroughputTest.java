@@ -0,0 +1,156 @@
+package ch.epfl.bio410;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * This class is the end-to-end throughput check of the pipeline.
+ * It generates a synthetic plate, runs the whole analysis without any dialog and with the StubClassifier,
+ * reports FoVs/s, cells/s and the peak RSS, and fails if the throughput is below the stored baseline.
+ *
+ * It runs Stardist on the whole plate, so it is skipped unless asked for, e.g.
+ * mvn test -Dtest=ThroughputTest -Dthroughput=true -Dthroughput.wells=4 -Dthroughput.fovs=8
+ *
+ * Options (system properties throughput.key): dir, wells, fovs, nuclei, size, metaphase, seed,
+ * baseline (properties file), tolerance (allowed relative drop), update (true to store this run as the baseline).
+ */
+public class ThroughputTest {
+
+    /**
+     * Gets an option of the check, from the system property throughput.key.
+     */
+    static String option(String key, String def) {
+        return System.getProperty("throughput." + key, def);
+    }
+
+    /**
+     * Runs the check, it fails if the throughput dropped below the baseline.
+     */
+    @Test
+    public void throughputIsWithinTheBaseline() throws IOException {
+        assumeTrue("throughput check not asked for (-Dthroughput=true)", Boolean.getBoolean("throughput"));
+        File dir = new File(option("dir", "target/throughput_run"));
+        File baselineFile = new File(option("baseline", "throughput_baseline.properties"));
+        double tolerance = Double.parseDouble(option("tolerance", "0.1"));
+        boolean update = Boolean.parseBoolean(option("update", "false"));
+
+        /////////////////////////////////////////////////////////////
+        // Generate the plate
+
+        SyntheticPlate plate = new SyntheticPlate(
+                Integer.parseInt(option("wells", "4")),
+                Integer.parseInt(option("fovs", "8")),
+                Integer.parseInt(option("nuclei", "200")),
+                Integer.parseInt(option("size", "1024")),
+                Double.parseDouble(option("metaphase", "0.2")),
+                Long.parseLong(option("seed", "42")));
+        File dataDir = new File(dir, "data");
+        File resultsDir = new File(dir, "results");
+        if (!resultsDir.exists() && !resultsDir.mkdirs()) {
+            throw new IOException("Unable to create " + resultsDir);
+        }
+        plate.write(dataDir);
+        System.out.println("Synthetic plate: " + plate.wells * plate.fovs + " FoVs, " + plate.totalNuclei + " nuclei, " + plate.totalMetaphase + " in metaphase");
+
+        /////////////////////////////////////////////////////////////
+        // Run the pipeline
+
+        ProjectCommand command = new ProjectCommand();
+        command.params.dataDir = dataDir.getAbsolutePath() + File.separator;
+        command.params.resultsDir = resultsDir.getAbsolutePath() + File.separator;
+        command.params.tempPath = command.params.resultsDir + "temp";
+        command.classifier = new StubClassifier(2.0);
+        command.savePlots = false;
+
+        long start = System.nanoTime();
+        boolean complete;
+        try {
+            complete = command.runAnalysis();
+        } finally {
+            if (command.imageJ != null) command.imageJ.context().dispose(); // its threads would outlive the test
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertTrue("The analysis of the synthetic plate did not complete", complete);
+
+        long fovs = 0;
+        double cells = 0;
+        for (List<Well> wells : command.wellsByInitial.values()) {
+            for (Well well : wells) {
+                for (WellEntry entry : well.results) {
+                    fovs++;
+                    cells += entry.total_nuclei;
+                }
+            }
+        }
+        double fovsPerSecond = fovs / seconds;
+        double cellsPerSecond = cells / seconds;
+        long peakRss = peakRssBytes();
+
+        System.out.println(String.format("Throughput: %d FoVs in %.1f s, %.3f FoVs/s, %.1f cells/s, peak RSS %.0f MB",
+                fovs, seconds, fovsPerSecond, cellsPerSecond, peakRss / (1024.0 * 1024.0)));
+        System.out.println(String.format("Nuclei found: %.0f of %d generated (%.1f%%)",
+                cells, plate.totalNuclei, plate.totalNuclei == 0 ? 0 : 100 * cells / plate.totalNuclei));
+
+        /////////////////////////////////////////////////////////////
+        // Compare with the baseline
+
+        Properties baseline = new Properties();
+        if (baselineFile.isFile() && !update) {
+            try (Reader reader = new BufferedReader(new FileReader(baselineFile))) {
+                baseline.load(reader);
+            }
+            double minFovs = Double.parseDouble(baseline.getProperty("fovs_per_s", "0")) * (1 - tolerance);
+            double minCells = Double.parseDouble(baseline.getProperty("cells_per_s", "0")) * (1 - tolerance);
+            assertTrue(String.format("Throughput regression: %.3f FoVs/s (minimum %.3f), %.1f cells/s (minimum %.1f)",
+                    fovsPerSecond, minFovs, cellsPerSecond, minCells), fovsPerSecond >= minFovs && cellsPerSecond >= minCells);
+            System.out.println("Throughput within " + (tolerance * 100) + "% of the baseline " + baselineFile);
+        } else {
+            baseline.setProperty("fovs_per_s", String.valueOf(fovsPerSecond));
+            baseline.setProperty("cells_per_s", String.valueOf(cellsPerSecond));
+            baseline.setProperty("peak_rss_bytes", String.valueOf(peakRss));
+            try (Writer writer = new FileWriter(baselineFile)) {
+                baseline.store(writer, "Throughput baseline: " + fovs + " FoVs of " + plate.size + " px, " + plate.nuclei + " nuclei per FoV");
+            }
+            System.out.println("Baseline stored in " + baselineFile);
+        }
+    }
+
+    /**
+     * Gets the peak resident set size of the JVM, from /proc on Linux,
+     * or the sum of the peak usages of the memory pools elsewhere.
+     */
+    static long peakRssBytes() {
+        File status = new File("/proc/self/status");
+        if (status.isFile()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(status))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmHWM:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024; // in kB
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // use the memory pools
+            }
+        }
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getPeakUsage() != null) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,73 @@
+import itertools
+import os
+import sys
+
+import numpy as np
+import pandas as pd
+
+
+# Derives the thresholds of the cascade (CascadeClassifier) from the manually annotated features,
+# the same files as the random forest. A cell is rejected if it is not elongated enough
+# or if its nucleus is too flat, and the thresholds are the ones that reject the most negatives
+# while keeping at least the target recall on the cells labelled in metaphase.
+#
+# Usage: python train_cascade.py [target recall, default 1.0]
+# The thresholds are printed as properties, to paste in a job file or to set in Parameters.
+
+
+##################################
+## Create DataFrame
+
+def df_wrangling(path_df):
+    df = pd.read_csv(path_df, header=None) # Load the CSV file into a DataFrame
+    df = df.transpose() # Transpose the DataFrame
+    first_row = df.iloc[0,] #take first row, i.w. the name of the columns
+    df = df.drop(df.index[0]) #remove first column
+    df = df.rename(columns=dict(zip(df.columns, first_row.values))) # Name the columns
+    return df.astype(float)
+
+
+# Specify the directory path
+folder_path = "training_data_metaphase/"
+
+target_recall = float(sys.argv[1]) if len(sys.argv) > 1 else 1.0
+
+# Read all the annotated files
+filtered_files = [file for file in os.listdir(folder_path) if file.startswith('data_prefiltered') and file.endswith('.csv')]
+df = pd.concat([df_wrangling(os.path.join(folder_path, file)) for file in filtered_files], axis=0, ignore_index=True)
+
+positive = df['label'] > 0
+n_positive = positive.sum()
+print("Cells: %d, in metaphase: %d" % (len(df), n_positive))
+
+
+##################################
+## Search the thresholds
+
+# candidates: the low (or high) quantiles of the cells in metaphase, a rule never goes past the extreme positive
+quantiles = np.linspace(0, 0.05, 11)
+# roundness is 1/AR, it would not add anything to the aspect ratio.
+# The circularity is not fitted: the annotated cells passed the prefilter (circularity_threshold = 0.9),
+# the highest one in metaphase is 0.8996, so a rule fitted on them would not be stricter than the prefilter
+print("Highest circularity: %.4f of all the cells, %.4f in metaphase" % (df['circularity'].max(), df.loc[positive, 'circularity'].max()))
+aspect_ratio_candidates = np.quantile(df.loc[positive, 'AR'], quantiles)
+std_candidates = np.quantile(df.loc[positive, 'nucl_std_in'], quantiles)
+
+best = None
+for min_aspect_ratio, min_std in itertools.product(aspect_ratio_candidates, std_candidates):
+    rejected = (df['AR'] < min_aspect_ratio) | (df['nucl_std_in'] < min_std)
+    recall = 1 - (rejected & positive).sum() / n_positive
+    if recall < target_recall:
+        continue
+    n_rejected = rejected.sum()
+    if best is None or n_rejected > best[0]:
+        best = (n_rejected, recall, min_aspect_ratio, min_std)
+
+if best is None:
+    print("No thresholds reach a recall of %.3f" % target_recall)
+    sys.exit(1)
+
+n_rejected, recall, min_aspect_ratio, min_std = best
+print("Rejected: %d of %d cells (%.1f%%), recall on the cells in metaphase: %.4f" % (n_rejected, len(df), 100.0 * n_rejected / len(df), recall))
+print("cascade_min_aspect_ratio=%.3f" % min_aspect_ratio)
+print("cascade_min_nucl_std_in=%.1f" % min_std)